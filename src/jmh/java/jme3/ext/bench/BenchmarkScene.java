@@ -0,0 +1,109 @@
+package jme3.ext.bench;
+
+import java.nio.FloatBuffer;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
+
+import jme3.ext.DirtyTrackingNode;
+import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
+
+/**
+ * Synthetic scene graph for the benchmarks: quads with their own mesh, grouped 100 per node.
+ * Every frame a fraction of the geometries is moved and has its position buffer updated.
+ *
+ * @author Riccardo Balbo
+ */
+public class BenchmarkScene{
+	private static final int GROUP_SIZE=100;
+	// Buffers added in order to reach the requested number of buffers per mesh
+	private static final Type EXTRA_BUFFERS[]={Type.Index,Type.Normal,Type.TexCoord,Type.Tangent,Type.Color,Type.TexCoord2,Type.TexCoord3};
+
+	public final Node root;
+	public final Geometry geoms[];
+	private final VertexBuffer UPLOADS[];
+	private int UPLOADS_SIZE=0;
+	private int cursor=0;
+	private int frame=0;
+
+	public BenchmarkScene(int geometries,int buffersPerMesh,boolean dirtyTracking){
+		root=dirtyTracking?new DirtyTrackingNode():new Node();
+		geoms=new Geometry[geometries];
+		UPLOADS=new VertexBuffer[geometries];
+		Node group=null;
+		for(int i=0;i<geometries;i++){
+			if(i%GROUP_SIZE==0){
+				group=dirtyTracking?new DirtyTrackingNode():new Node();
+				root.attachChild(group);
+			}
+			geoms[i]=new Geometry("G"+i,createMesh(buffersPerMesh));
+			geoms[i].setLocalTranslation(i%1000,i/1000,0);
+			group.attachChild(geoms[i]);
+		}
+		root.updateGeometricState();
+	}
+
+	public static Mesh createMesh(int buffers){
+		Mesh m=new Mesh();
+		m.setBuffer(Type.Position,3,new float[]{0,0,0,1,0,0,1,1,0,0,1,0});
+		for(int i=0;i<buffers-1&&i<EXTRA_BUFFERS.length;i++){
+			Type t=EXTRA_BUFFERS[i];
+			if(t==Type.Index){
+				m.setBuffer(t,3,new short[]{0,1,2,0,2,3});
+			}else{
+				int components=t==Type.Tangent||t==Type.Color?4:t==Type.Normal?3:2;
+				m.setBuffer(t,components,BufferUtils.createFloatBuffer(4*components));
+			}
+		}
+		m.updateBound();
+		return m;
+	}
+
+	/**
+	 * Move and update the position buffer of the next changes geometries, then update the scene graph.
+	 */
+	public void mutate(int changes){
+		frame++;
+		for(int i=0;i<changes;i++){
+			Geometry g=geoms[cursor];
+			cursor=(cursor+1)%geoms.length;
+			g.setLocalScale(1f+(frame&7)*0.1f);
+			VertexBuffer vb=g.getMesh().getBuffer(Type.Position);
+			((FloatBuffer)vb.getData()).put(0,frame);
+			vb.setUpdateNeeded();
+			UPLOADS[UPLOADS_SIZE++]=vb;
+		}
+		root.updateLogicalState(0.016f);
+		root.updateGeometricState();
+	}
+
+	/**
+	 * Clear the update flag of the buffers updated since the last call, as the renderer does when it uploads them.
+	 */
+	public void upload(){
+		for(int i=0;i<UPLOADS_SIZE;i++){
+			UPLOADS[i].clearUpdateNeeded();
+			UPLOADS[i]=null;
+		}
+		UPLOADS_SIZE=0;
+	}
+
+	/**
+	 * @param mode names of TrackingMode constants separated by |
+	 */
+	public static int parseTrackingMode(String mode){
+		int out=TrackingMode.NONE;
+		for(String s:mode.split("\\|")){
+			try{
+				out|=TrackingMode.class.getField(s.trim()).getByte(null);
+			}catch(Exception e){
+				throw new IllegalArgumentException("Unknown tracking mode "+s,e);
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,105 @@
+package jme3.ext.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AppState;
+import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Geometry;
+import com.jme3.system.NullRenderer;
+
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+import jme3.ext.VertexBufferUpdateTracker;
+
+/**
+ * Cost of GeometryUpdateDetector.update for one frame. The scene changes and the tracker frame are part of every measured call,
+ * the scene benchmark measures them alone so that the detector cost is the difference between the two.
+ * With changeRate 0 it measures the steady state comparison (getGeometryState) of every geometry.
+ *
+ * @author Riccardo Balbo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class GeometryUpdateDetectorBenchmark{
+
+	@Param({"1000","10000","100000"})
+	public int geometries;
+
+	@Param({"1","4","8"})
+	public int buffersPerMesh;
+
+	@Param({"0","0.01","0.1"})
+	public float changeRate;
+
+	@Param({"false","true"})
+	public boolean eventDriven;
+
+	@Param({"GPU|USAGE|TYPE|ID","CPU|GPU|USAGE|TYPE|ID"})
+	public String trackingMode;
+
+	private BenchmarkScene scene;
+	private GeometryUpdateDetector detector;
+	private VertexBufferUpdateTracker tracker;
+	private RenderManager rm;
+	private int changes;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		scene=new BenchmarkScene(geometries,buffersPerMesh,eventDriven);
+		changes=(int)(geometries*changeRate);
+		SimpleApplication app=new SimpleApplication(new AppState[0]){
+			@Override
+			public void simpleInitApp() {}
+		};
+		detector=new GeometryUpdateDetector(scene.root);
+		detector.setEventDriven(eventDriven);
+		detector.setBufferTrackingMode(BenchmarkScene.parseTrackingMode(trackingMode));
+		detector.addListener(new GeometryUpdateListener(){
+			@Override
+			public boolean onUpdate(float tpf, Geometry g, byte state) {
+				return true;
+			}
+		});
+		app.getStateManager().attach(detector);
+		app.getStateManager().update(0); // initialize and first detection
+		tracker=app.getStateManager().getState(VertexBufferUpdateTracker.class);
+		rm=new RenderManager(new NullRenderer());
+		for(int i=0;i<10;i++)update();
+	}
+
+	private void prepareFrame() {
+		scene.mutate(changes);
+		tracker.render(rm);
+		scene.upload();
+		tracker.postRender();
+	}
+
+	@Benchmark
+	public void scene() {
+		prepareFrame();
+	}
+
+	@Benchmark
+	public void update() {
+		prepareFrame();
+		detector.update(0.016f);
+	}
+}
@@ -0,0 +1,83 @@
+package jme3.ext.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.system.NullRenderer;
+
+import jme3.ext.VertexBufferUpdateTracker;
+
+/**
+ * Cost of one frame of VertexBufferUpdateTracker (render and postRender) for each tracking mode alone and all of them together.
+ * The scene changes and the upload are part of every measured call, the scene benchmark measures them alone so that the tracker cost
+ * is the difference between the two. Other combinations can be measured with -p trackingMode=...
+ *
+ * @author Riccardo Balbo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class VertexBufferUpdateTrackerBenchmark{
+
+	@Param({"1000","10000","100000"})
+	public int geometries;
+
+	@Param({"1","8"})
+	public int buffersPerMesh;
+
+	@Param({"0","0.1"})
+	public float changeRate;
+
+	@Param({"CPU","GPU","USAGE","TYPE","ID","CPU|GPU|USAGE|TYPE|ID"})
+	public String trackingMode;
+
+	private BenchmarkScene scene;
+	private VertexBufferUpdateTracker tracker;
+	private RenderManager rm;
+	private int changes;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		scene=new BenchmarkScene(geometries,buffersPerMesh,false);
+		changes=(int)(geometries*changeRate);
+		tracker=new VertexBufferUpdateTracker();
+		int mode=BenchmarkScene.parseTrackingMode(trackingMode);
+		for(Geometry g:scene.geoms){
+			for(VertexBuffer vb:g.getMesh().getBufferList())tracker.add(vb,mode);
+		}
+		rm=new RenderManager(new NullRenderer());
+		for(int i=0;i<10;i++)frame();
+	}
+
+	@Benchmark
+	public void scene() {
+		scene.mutate(changes);
+		scene.upload();
+	}
+
+	@Benchmark
+	public void frame() {
+		scene.mutate(changes);
+		tracker.render(rm);
+		scene.upload();
+		tracker.postRender();
+	}
+}
@@ -1,16 +1,63 @@
 package jme3.ext;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
 import com.jme3.app.state.BaseAppState;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.Material;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Camera.FrustumIntersect;
 import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
 import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.instancing.InstancedGeometry;
 
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
 import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+import jme3.ext.GeometryUpdateDetector.MeshUpdate;
+import jme3.ext.GeometryUpdateDetector.MeshUpdateListener;
 import lombok.extern.log4j.Log4j2;
 
 /**
+ * Base class for the appstates that generate debug geometries from the geometries of a scene.
+ *
+ * With culling enabled the overlays are generated lazily, only for the geometries inside the camera frustum
+ * or within the visible radius, at most generationBudget per frame.
+ * When there are more than maxOverlays overlays, the least recently visible ones are evicted.
+ * Only the geometries that reported a change are tested again against the frustum, all of them when the camera moves.
+ *
+ * With a time budget the overlays are generated from a queue, visible and nearest geometries first,
+ * spending at most the given milliseconds per frame instead of generating all of them at once.
+ *
+ * With a region radius the state subscribes to the changes of the grid cells around the camera through the {@link SpatialChangeIndex} of the detector,
+ * geometries outside of the region are not seen at all and the overlays of the geometries that leave it are removed.
+ *
+ * Debug geometries of an InstancedGeometry are drawn instanced too, see {@link #createDebugGeometry(String, Geometry, Mesh, SharedMaterialKey)}.
+ *
+ * Subclasses can build their meshes with {@link #build(Geometry, Type[], MeshBuilder)}: with background building enabled
+ * the builder runs on a worker thread with a copy of the source buffers and the result is handed back to {@link #onMeshBuilt(Geometry, Mesh)}
+ * on the render thread, results of sources that changed again in the meantime are discarded.
+ *
  * @author Riccardo Balbo
  */
 
@@ -20,6 +67,103 @@ public abstract class AbstractGeometryDebuggerAppState extends BaseAppState impl
 	private GeometryUpdateDetector GEOM_UPD;
 	
 	private Spatial  C_A;
+
+	private static class Tracked{
+		public final Geometry geom;
+		public boolean generated;
+		public boolean visible;
+		// Waiting in QUEUE
+		public boolean queued;
+		// Waiting in DIRTY
+		public boolean dirty;
+		public float priority;
+
+		public Tracked(Geometry g){
+			geom=g;
+		}
+	}
+
+	/**
+	 * Receives the events from the detector and forwards them to the subclass, directly or through the culling.
+	 */
+	private class Dispatcher implements GeometryUpdateListener{
+		@Override
+		public boolean onUpdate(float tpf, Geometry g, byte state) {
+			return dispatch(tpf,g,state,null);
+		}
+	}
+
+	private class DetailedDispatcher extends Dispatcher implements MeshUpdateListener{
+		@Override
+		public boolean onUpdate(float tpf, Geometry g, byte state, MeshUpdate update) {
+			return dispatch(tpf,g,state,update);
+		}
+	}
+
+	private Dispatcher DISPATCHER;
+
+	/**
+	 * Builds a mesh from a source mesh, could be called outside of the render thread.
+	 */
+	public static interface MeshBuilder{
+		/**
+		 * @param source the source mesh or a copy of its buffers, must not be modified.
+		 * @return the built mesh or null
+		 */
+		public Mesh build(Mesh source);
+	}
+
+	private static class BuildResult{
+		public final Geometry source;
+		public final long version;
+		public final Mesh mesh;
+
+		public BuildResult(Geometry source,long version,Mesh mesh){
+			this.source=source;
+			this.version=version;
+			this.mesh=mesh;
+		}
+	}
+
+	private boolean backgroundBuilding=false;
+	private ExecutorService BUILD_EXECUTOR;
+	private boolean OWN_EXECUTOR;
+	private long BUILD_VERSION=0;
+	// Version of the last build requested for each source, accessed only by the render thread
+	private final Map<Geometry,Long> BUILDS=new HashMap<Geometry,Long>();
+	private final ConcurrentLinkedQueue<BuildResult> BUILT=new ConcurrentLinkedQueue<BuildResult>();
+
+	private boolean culling=false;
+	private boolean CULLING_ACTIVE=false;
+	private float visibleRadius=0;
+	private int maxOverlays=4096;
+	private int generationBudget=64;
+	private float timeBudget=0;
+	private boolean QUEUE_ACTIVE=false;
+	private int PENDING_COUNT=0;
+	// Geometries waiting for an overlay, sorted by priority
+	private final List<Tracked> QUEUE=new ArrayList<Tracked>();
+	// Geometries that changed since the last visibility test
+	private final List<Tracked> DIRTY=new ArrayList<Tracked>();
+	private boolean CAMERA_VALID=false;
+	private final Vector3f CAMERA_LOCATION=new Vector3f();
+	private final Quaternion CAMERA_ROTATION=new Quaternion();
+	private final Matrix4f CAMERA_PROJECTION=new Matrix4f();
+	private static final Comparator<Tracked> PRIORITY_ORDER=new Comparator<Tracked>(){
+		@Override
+		public int compare(Tracked a, Tracked b) {
+			return Float.compare(a.priority,b.priority);
+		}
+	};
+	private final Map<Geometry,Tracked> TRACKED=new HashMap<Geometry,Tracked>();
+	// In access order: the least recently visible overlay first
+	private final LinkedHashMap<Geometry,Tracked> GENERATED=new LinkedHashMap<Geometry,Tracked>(16,0.75f,true);
+
+	private float regionRadius=0;
+	private float regionCellSize=32f;
+	private SpatialChangeIndex REGION_INDEX;
+	private SpatialChangeIndex.Subscription REGION;
+
 	public AbstractGeometryDebuggerAppState(){
 		
 	}
@@ -39,23 +183,444 @@ public abstract class AbstractGeometryDebuggerAppState extends BaseAppState impl
 			C_A=null;
 		}
 		VIEWPORT=DebugViewPortAppState.getInstance(app);		
+		DISPATCHER=this instanceof MeshUpdateListener?new DetailedDispatcher():new Dispatcher();
+	}
+
+	/**
+	 * Generate overlays only for the visible geometries. Applies the next time the state is enabled.
+	 */
+	public void setCulling(boolean v){
+		culling=v;
+	}
+
+	public boolean isCulling(){
+		return culling;
+	}
+
+	/**
+	 * Geometries closer than this radius to the camera are visible even when outside of the frustum. 0 to disable.
+	 */
+	public void setVisibleRadius(float r){
+		visibleRadius=r;
+	}
+
+	public float getVisibleRadius(){
+		return visibleRadius;
+	}
+
+	/**
+	 * Maximum number of overlays kept when culling is enabled, the least recently visible are evicted first.
+	 */
+	public void setMaxOverlays(int n){
+		maxOverlays=n;
+	}
+
+	public int getMaxOverlays(){
+		return maxOverlays;
+	}
+
+	/**
+	 * Maximum number of overlays generated per frame when culling or the time budget are enabled.
+	 */
+	public void setGenerationBudget(int n){
+		generationBudget=n;
+	}
+
+	public int getGenerationBudget(){
+		return generationBudget;
+	}
+
+	/**
+	 * Milliseconds per frame that can be spent generating overlays, 0 to generate them as soon as they are detected.
+	 * Applies the next time the state is enabled.
+	 */
+	public void setTimeBudget(float ms){
+		timeBudget=ms;
+	}
+
+	public float getTimeBudget(){
+		return timeBudget;
+	}
+
+	/**
+	 * Receive only the changes of the geometries in the grid cells within this distance from the camera. 0 to receive everything.
+	 * Applies the next time the state is enabled.
+	 */
+	public void setRegionRadius(float r){
+		regionRadius=r;
 	}
+
+	public float getRegionRadius(){
+		return regionRadius;
+	}
+
+	/**
+	 * Cell size of the spatial index created when the detector doesn't have one already.
+	 * An index created by the debug states is removed from the detector when its last subscription is removed.
+	 */
+	public void setRegionCellSize(float size){
+		regionCellSize=size;
+	}
+
+	public float getRegionCellSize(){
+		return regionCellSize;
+	}
+
+	/**
+	 * Build the meshes on a worker thread, see {@link #build(Geometry, Type[], MeshBuilder)}.
+	 */
+	public void setBackgroundBuilding(boolean v){
+		backgroundBuilding=v;
+	}
+
+	public boolean isBackgroundBuilding(){
+		return backgroundBuilding;
+	}
+
+	/**
+	 * Set the executor used for background building. If not set a single thread executor is created when needed and shut down on cleanup.
+	 */
+	public void setBuildExecutor(ExecutorService executor){
+		if(OWN_EXECUTOR)BUILD_EXECUTOR.shutdown();
+		BUILD_EXECUTOR=executor;
+		OWN_EXECUTOR=false;
+	}
+
+	/**
+	 * @return the number of geometries waiting for their overlay to be generated.
+	 * With culling enabled only the visible ones are generated, so this could never reach 0.
+	 */
+	public int getPendingCount(){
+		return PENDING_COUNT;
+	}
+
+	/**
+	 * @return the number of geometries tracked by the culling or the queue
+	 */
+	public int getTrackedCount(){
+		return TRACKED.size();
+	}
+
+	/**
+	 * @return the fraction of the tracked geometries whose overlay has been generated, 1 when nothing is pending.
+	 */
+	public float getProgress(){
+		int n=TRACKED.size();
+		return n==0?1f:(float)(n-PENDING_COUNT)/n;
+	}
+
 	
 	@Override
 	protected void onEnable(){
-		GEOM_UPD.addListener(this);
+		CULLING_ACTIVE=culling;
+		QUEUE_ACTIVE=timeBudget>0;
+		if(regionRadius>0){
+			REGION_INDEX=GEOM_UPD.getSpatialIndex();
+			if(REGION_INDEX==null){
+				REGION_INDEX=new SpatialChangeIndex(regionCellSize);
+				REGION_INDEX.DEBUG_STATES_OWNED=true; // Shared with the other debug states, removed by the last one
+				GEOM_UPD.setSpatialIndex(REGION_INDEX);
+			}
+			REGION=REGION_INDEX.subscribe(DISPATCHER);
+			REGION.setRegion(getApplication().getCamera().getLocation(),regionRadius);
+		}else{
+			GEOM_UPD.addListener(DISPATCHER);
+		}
 		GEOM_UPD.setEnabled(this,true);
 		VIEWPORT.setEnabled(this,true);
 	}
 	
 	@Override
 	protected void onDisable(){
-		GEOM_UPD.removeListener(this);
+		if(REGION!=null){
+			REGION_INDEX.unsubscribe(REGION);
+			// While an index is set every geometry is considered processed, it must not outlive its subscribers. 
+			// An index installed by the application is left in place.
+			if(REGION_INDEX.DEBUG_STATES_OWNED&&REGION_INDEX.getSubscriptionCount()==0&&GEOM_UPD.getSpatialIndex()==REGION_INDEX){
+				GEOM_UPD.setSpatialIndex(null);
+			}
+			REGION=null;
+			REGION_INDEX=null;
+		}else{
+			GEOM_UPD.removeListener(DISPATCHER);
+		}
 		GEOM_UPD.setEnabled(this,false);
 		VIEWPORT.setEnabled(this,false);
+		TRACKED.clear();
+		GENERATED.clear();
+		QUEUE.clear();
+		DIRTY.clear();
+		CAMERA_VALID=false;
+		PENDING_COUNT=0;
+		BUILDS.clear();
+		BUILT.clear();
+	}
+
+	private boolean forward(float tpf,Geometry g,byte state,MeshUpdate update){
+		if(this instanceof MeshUpdateListener)return ((MeshUpdateListener)this).onUpdate(tpf,g,state,update);
+		return onUpdate(tpf,g,state);
+	}
+
+	private boolean dispatch(float tpf,Geometry g,byte state,MeshUpdate update){
+		if(!CULLING_ACTIVE&&!QUEUE_ACTIVE)return forward(tpf,g,state,update);
+		if(state==GeometryState.NONE)return false;
+
+		Tracked t=TRACKED.get(g);
+		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)){
+			if(t==null)return false;
+			TRACKED.remove(g);
+			if(t.queued){
+				QUEUE.remove(t);
+				t.queued=false;
+			}
+			if(!t.generated){
+				PENDING_COUNT--;
+				return false;
+			}
+			GENERATED.remove(g);
+			return forward(tpf,g,state,update);
+		}
+
+		if(t==null){
+			t=new Tracked(g);
+			TRACKED.put(g,t);
+			PENDING_COUNT++;
+		}
+		if(!t.dirty){
+			t.dirty=true;
+			DIRTY.add(t);
+		}
+		// Overlays that exist are kept in sync, the others are generated in update().
+		// Tracked geometries are always reported as processed, so the detector doesn't report them as new again.
+		if(t.generated)forward(tpf,g,state,update);
+		return true;
+	}
+
+	/**
+	 * Test again the visibility of a tracked geometry and set its priority, queued is set if it's waiting for an overlay.
+	 */
+	private void refresh(Camera cam,Tracked t){
+		t.visible=isVisible(cam,t.geom);
+		if(t.generated){
+			if(t.visible)GENERATED.get(t.geom); // Move to the most recently visible end
+		}else if(t.visible||!CULLING_ACTIVE){
+			// Visible geometries first, then the nearest
+			BoundingVolume bv=t.geom.getWorldBound();
+			float distance=bv==null?0:bv.distanceTo(cam.getLocation());
+			t.priority=t.visible?distance:Float.MAX_VALUE/2+distance;
+			t.queued=true;
+		}
+	}
+
+	private void clearDirty(){
+		for(int i=0;i<DIRTY.size();i++)DIRTY.get(i).dirty=false;
+		DIRTY.clear();
+	}
 
+	/**
+	 * @return true if the camera moved or changed projection since the last call
+	 */
+	private boolean updateCamera(Camera cam){
+		if(CAMERA_VALID&&CAMERA_LOCATION.equals(cam.getLocation())&&CAMERA_ROTATION.equals(cam.getRotation())
+			&&CAMERA_PROJECTION.equals(cam.getProjectionMatrix()))return false;
+		CAMERA_LOCATION.set(cam.getLocation());
+		CAMERA_ROTATION.set(cam.getRotation());
+		CAMERA_PROJECTION.set(cam.getProjectionMatrix());
+		CAMERA_VALID=true;
+		return true;
+	}
+
+	private boolean isVisible(Camera cam,Geometry g){
+		BoundingVolume bv=g.getWorldBound();
+		if(bv==null)return true;
+		if(visibleRadius>0&&bv.distanceToEdge(cam.getLocation())<=visibleRadius)return true;
+		int plane_state=cam.getPlaneState();
+		cam.setPlaneState(0);
+		FrustumIntersect r=cam.contains(bv);
+		cam.setPlaneState(plane_state);
+		return r!=FrustumIntersect.Outside;
+	}
+
+	/**
+	 * Build a mesh from the source geometry. Without background building the builder is called immediately with the source mesh, 
+	 * otherwise it is called on a worker thread with a copy of the given buffers. 
+	 * The result is passed to onMeshBuilt on the render thread, unless another build for the same source is requested or the build is canceled in the meantime.
+	 */
+	protected void build(final Geometry source,Type buffers[],final MeshBuilder builder){
+		final long version=++BUILD_VERSION;
+		if(!backgroundBuilding){
+			BUILDS.remove(source);
+			onMeshBuilt(source,builder.build(source.getMesh()));
+			return;
+		}
+		BUILDS.put(source,version);
+		final Mesh snapshot=snapshotMesh(source.getMesh(),buffers);
+		if(BUILD_EXECUTOR==null){
+			BUILD_EXECUTOR=Executors.newSingleThreadExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t=new Thread(r,"Debug mesh builder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			OWN_EXECUTOR=true;
+		}
+		BUILD_EXECUTOR.execute(new Runnable(){
+			@Override
+			public void run() {
+				Mesh mesh=null;
+				try{
+					mesh=builder.build(snapshot);
+				}catch(Throwable e){
+					LOGGER.error("Cannot build the debug mesh of {}",source,e);
+				}
+				BUILT.add(new BuildResult(source,version,mesh));
+			}
+		});
+	}
+
+	/**
+	 * Discard the result of the build in flight for the given source, if any.
+	 */
+	protected void cancelBuild(Geometry source){
+		BUILDS.remove(source);
+	}
+
+	/**
+	 * Called on the render thread with the result of the last build requested for the source.
+	 * @param mesh the built mesh, null if the builder failed or returned null
+	 */
+	protected void onMeshBuilt(Geometry source,Mesh mesh){}
+
+	/**
+	 * @return a mesh with the same mode and a copy of the given buffers of the source mesh
+	 */
+	protected static Mesh snapshotMesh(Mesh source,Type buffers[]){
+		Mesh out=new Mesh();
+		out.setMode(source.getMode());
+		for(Type t:buffers){
+			VertexBuffer vb=source.getBuffer(t);
+			if(vb!=null)out.setBuffer(vb.clone());
+		}
+		out.updateCounts();
+		return out;
+	}
+
+	private void handoffBuilds(){
+		for(BuildResult r;(r=BUILT.poll())!=null;){
+			Long version=BUILDS.get(r.source);
+			if(version==null||version!=r.version){
+				LOGGER.debug("Discard stale debug mesh of {}",r.source);
+				continue;
+			}
+			BUILDS.remove(r.source);
+			onMeshBuilt(r.source,r.mesh);
+		}
+	}
+
+	@Override
+	public void update(float tpf) {
+		handoffBuilds();
+		if(REGION!=null)REGION.setRegion(getApplication().getCamera().getLocation(),regionRadius);
+		if(!CULLING_ACTIVE&&!QUEUE_ACTIVE)return;
+		if(!CULLING_ACTIVE&&PENDING_COUNT==0){
+			// Nothing to generate and no overlay to evict
+			clearDirty();
+			return;
+		}
+		Camera cam=getApplication().getCamera();
+		if(updateCamera(cam)){
+			clearDirty();
+			QUEUE.clear();
+			for(Tracked t:TRACKED.values()){
+				t.queued=false;
+				refresh(cam,t);
+				if(t.queued)QUEUE.add(t);
+			}
+			Collections.sort(QUEUE,PRIORITY_ORDER);
+		}else{
+			// Only the changed geometries are moved in the queue, that stays sorted
+			for(int i=0;i<DIRTY.size();i++){
+				Tracked t=DIRTY.get(i);
+				t.dirty=false;
+				if(TRACKED.get(t.geom)!=t)continue; // Removed
+				if(t.queued)QUEUE.remove(t);
+				t.queued=false;
+				refresh(cam,t);
+				if(t.queued){
+					int index=Collections.binarySearch(QUEUE,t,PRIORITY_ORDER);
+					QUEUE.add(index<0?-index-1:index,t);
+				}
+			}
+			DIRTY.clear();
+		}
+
+		long start=System.nanoTime();
+		long max_time=(long)(timeBudget*1000000.0);
+		int generated=0;
+		for(int i=0;i<QUEUE.size()&&generated<generationBudget;i++){
+			if(QUEUE_ACTIVE&&generated>0&&System.nanoTime()-start>=max_time)break;
+			Tracked t=QUEUE.get(i);
+			generated++;
+			PENDING_COUNT--;
+			t.queued=false;
+			t.generated=true;
+			GENERATED.put(t.geom,t);
+			forward(tpf,t.geom,GeometryState.NEW_GEOMETRY,null);
+		}
+		QUEUE.subList(0,generated).clear();
+		if(generated>0&&LOGGER.isDebugEnabled()){
+			LOGGER.debug("Generated {} overlays in {} ms, {} pending, progress {}",generated,(System.nanoTime()-start)/1000000f,PENDING_COUNT,getProgress());
+		}
+
+		if(!CULLING_ACTIVE)return;
+		// Evict the least recently visible overlays, never the visible ones
+		Iterator<Tracked> it=GENERATED.values().iterator();
+		while(GENERATED.size()>maxOverlays&&it.hasNext()){
+			Tracked t=it.next();
+			if(t.visible)continue;
+			it.remove();
+			t.generated=false;
+			PENDING_COUNT++;
+			forward(tpf,t.geom,GeometryState.GEOMETRY_REMOVED,null);
+		}
+	}
+
+	/**
+	 * @return the material shared by all the debug appstates for the given key, it must not be modified.
+	 * It's released on cleanup or with {@link #releaseSharedMaterial(SharedMaterialKey)}.
+	 */
+	public Material getSharedMaterial(SharedMaterialKey key){
+		return VIEWPORT.getMaterial(getApplication().getAssetManager(),key,this);
+	}
+
+	/**
+	 * Release the shared material of the key and of its instanced variant, when this appstate no longer uses them (eg. the color changed).
+	 */
+	public void releaseSharedMaterial(SharedMaterialKey key){
+		VIEWPORT.releaseMaterial(key,this);
+		VIEWPORT.releaseMaterial(key.instanced(),this);
 	}
 	
+	/**
+	 * @return the shared material for the debug geometries of the given source, with instancing enabled if the source is an InstancedGeometry.
+	 */
+	public Material getSharedMaterial(SharedMaterialKey key,Geometry source){
+		return getSharedMaterial(source instanceof InstancedGeometry?key.instanced():key);
+	}
+
+	/**
+	 * Create a debug geometry for the source. If the source is an InstancedGeometry the debug geometry is drawn once per instance 
+	 * with the instance transforms of the source, otherwise it's a plain geometry with the world transform of the source.
+	 */
+	protected Geometry createDebugGeometry(String name,Geometry source,Mesh mesh,SharedMaterialKey key){
+		Geometry out=source instanceof InstancedGeometry?new InstancedDebugGeometry(name,(InstancedGeometry)source,mesh):new Geometry(name,mesh);
+		out.setMaterial(getSharedMaterial(key,source));
+		out.setLocalTransform(source.getWorldTransform());
+		return out;
+	}
+
 	public void attachSpatial(Geometry g){
 		LOGGER.debug("Attach {} to debug viewport",g);
 
@@ -69,7 +634,12 @@ public abstract class AbstractGeometryDebuggerAppState extends BaseAppState impl
 	
 	@Override
 	protected void cleanup(Application app){
-	
+		VIEWPORT.releaseMaterials(this);
+		if(OWN_EXECUTOR){
+			BUILD_EXECUTOR.shutdown();
+			BUILD_EXECUTOR=null;
+			OWN_EXECUTOR=false;
+		}
 	}
 
 }
\ No newline at end of file
@@ -1,6 +1,18 @@
 package jme3.ext;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
 import com.jme3.app.Application;
+import com.jme3.asset.AssetManager;
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.scene.Node;
@@ -10,11 +22,97 @@ import lombok.Getter;
 /**
  * Appstate that provide a "debug scene"
  * 
+ * Owns a cache of materials shared by the debug appstates: geometries that use the same kind of material 
+ * share the same instance, so they are sorted together and use the same compiled technique.
+ * Materials requested by a user are dropped from the cache when their last user releases them.
+ * 
  * @author Riccardo Balbo
  */
 
 public class DebugViewPortAppState extends SharedBaseAppState{
 
+	/**
+	 * Identifies a shared material: material definition, parameters and wireframe state. 
+	 * Keys with the same content are equal, colors are copied.
+	 */
+	public static final class SharedMaterialKey{
+		private final String MATDEF;
+		private final Map<String,Object> PARAMS=new TreeMap<String,Object>();
+		private boolean wireframe;
+
+		public SharedMaterialKey(String matdef){
+			MATDEF=matdef;
+		}
+
+		/**
+		 * Unshaded material with a solid color
+		 */
+		public static SharedMaterialKey color(ColorRGBA color,boolean wireframe){
+			return new SharedMaterialKey("Common/MatDefs/Misc/Unshaded.j3md").set("Color",color).setWireframe(wireframe);
+		}
+
+		/**
+		 * Unshaded material that uses the Color buffer of the mesh
+		 */
+		public static SharedMaterialKey vertexColor(){
+			return new SharedMaterialKey("Common/MatDefs/Misc/Unshaded.j3md").set("VertexColor",true);
+		}
+
+		public SharedMaterialKey set(String param,Object value){
+			PARAMS.put(param,value instanceof ColorRGBA?((ColorRGBA)value).clone():value);
+			return this;
+		}
+
+		public SharedMaterialKey setWireframe(boolean v){
+			wireframe=v;
+			return this;
+		}
+
+		/**
+		 * @return a copy of this key with instancing enabled, for the debug geometries of an InstancedGeometry. 
+		 * The material definition must have the UseInstancing parameter.
+		 */
+		public SharedMaterialKey instanced(){
+			return copy().set("UseInstancing",true);
+		}
+
+		SharedMaterialKey copy(){
+			SharedMaterialKey k=new SharedMaterialKey(MATDEF);
+			k.PARAMS.putAll(PARAMS); // Colors are already private copies, the other values are immutable
+			k.wireframe=wireframe;
+			return k;
+		}
+
+		Material create(AssetManager assetManager){
+			Material mat=new Material(assetManager,MATDEF);
+			for(Map.Entry<String,Object> e:PARAMS.entrySet()){
+				MatParam p=mat.getMaterialDef().getMaterialParam(e.getKey());
+				if(p==null)throw new IllegalArgumentException("Material parameter "+e.getKey()+" not defined in "+MATDEF);
+				mat.setParam(e.getKey(),p.getVarType(),e.getValue());
+			}
+			mat.getAdditionalRenderState().setWireframe(wireframe);
+			return mat;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(this==o)return true;
+			if(!(o instanceof SharedMaterialKey))return false;
+			SharedMaterialKey k=(SharedMaterialKey)o;
+			return wireframe==k.wireframe&&MATDEF.equals(k.MATDEF)&&PARAMS.equals(k.PARAMS);
+		}
+
+		@Override
+		public int hashCode(){
+			return (MATDEF.hashCode()*31+PARAMS.hashCode())*31+(wireframe?1:0);
+		}
+
+		@Override
+		public String toString(){
+			return MATDEF+PARAMS+(wireframe?" wireframe":"");
+		}
+	}
+
 	public static DebugViewPortAppState getInstance(Application app){
 		DebugViewPortAppState dbv=app.getStateManager().getState(DebugViewPortAppState.class);
 		if(dbv==null){
@@ -27,6 +125,67 @@ public class DebugViewPortAppState extends SharedBaseAppState{
 	
 	private @Getter ViewPort DEBUG_VIEWPORT;
 	private @Getter Node ROOT=new Node();
+	private final Map<SharedMaterialKey,SharedMaterial> MATERIALS=new HashMap<SharedMaterialKey,SharedMaterial>();
+
+	private static final class SharedMaterial{
+		private final Material MAT;
+		private final Set<Object> USERS=Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+		// Requested without a user, kept until cleanup
+		private boolean pinned;
+
+		SharedMaterial(Material mat){
+			MAT=mat;
+		}
+	}
+
+	/**
+	 * Get the shared material for the given key, creating it if needed. It stays cached until cleanup.
+	 * The returned material is shared: it must not be modified, request a material with a different key instead.
+	 */
+	public Material getMaterial(AssetManager assetManager,SharedMaterialKey key){
+		return getMaterial(assetManager,key,null);
+	}
+
+	/**
+	 * Get the shared material for the given key on behalf of user, it stays cached until every user releases it 
+	 * with {@link #releaseMaterial(SharedMaterialKey,Object)} or {@link #releaseMaterials(Object)}.
+	 */
+	public Material getMaterial(AssetManager assetManager,SharedMaterialKey key,Object user){
+		SharedMaterial sm=MATERIALS.get(key);
+		if(sm==null){
+			sm=new SharedMaterial(key.create(assetManager));
+			// The caller can still modify its key, the map gets a copy that is never exposed
+			MATERIALS.put(key.copy(),sm);
+		}
+		if(user==null)sm.pinned=true;
+		else sm.USERS.add(user);
+		return sm.MAT;
+	}
+
+	/**
+	 * The user no longer needs the material of this key
+	 */
+	public void releaseMaterial(SharedMaterialKey key,Object user){
+		SharedMaterial sm=MATERIALS.get(key);
+		if(sm!=null&&sm.USERS.remove(user)&&sm.USERS.isEmpty()&&!sm.pinned)MATERIALS.remove(key);
+	}
+
+	/**
+	 * The user no longer needs any of its materials
+	 */
+	public void releaseMaterials(Object user){
+		for(Iterator<SharedMaterial> i=MATERIALS.values().iterator();i.hasNext();){
+			SharedMaterial sm=i.next();
+			if(sm.USERS.remove(user)&&sm.USERS.isEmpty()&&!sm.pinned)i.remove();
+		}
+	}
+
+	/**
+	 * @return the number of cached materials
+	 */
+	public int getMaterialCount(){
+		return MATERIALS.size();
+	}
 
 	
 	@Override
@@ -35,8 +194,8 @@ public class DebugViewPortAppState extends SharedBaseAppState{
 
 	@Override
 	public void render(RenderManager rm) {
+		// ROOT is attached to the viewport, the RenderManager queues and flushes it
 		ROOT.updateGeometricState();
-		rm.renderScene(ROOT,DEBUG_VIEWPORT);
 	}
 
 	@Override
@@ -64,7 +223,9 @@ public class DebugViewPortAppState extends SharedBaseAppState{
 	}
 
 	@Override
-	protected void cleanup(Application app) {}
+	protected void cleanup(Application app) {
+		MATERIALS.clear();
+	}
 
 	protected boolean drawOnTop;
 	public void setDrawAlwaysOnTop(boolean v) {
@@ -0,0 +1,73 @@
+package jme3.ext;
+
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+import lombok.Getter;
+
+/**
+ * Node that stamps itself and its tracking ancestors with a revision number
+ * when a child is attached or detached or when something below it changes its transform or bound.
+ *
+ * Used by {@link GeometryUpdateDetector} in event driven mode to visit only the subtrees that changed.
+ *
+ * @author Riccardo Balbo
+ */
+public class DirtyTrackingNode extends Node{
+	private static long GLOBAL_REVISION=0;
+
+	public static long getCurrentRevision(){
+		return GLOBAL_REVISION;
+	}
+
+	/**
+	 * Revision of the last change of the direct content of this node (children list, non-tracking descendants, transform, bound)
+	 */
+	private @Getter long REVISION=++GLOBAL_REVISION;
+	/**
+	 * Revision of the last change in the subtree rooted in this node
+	 */
+	private @Getter long SUBTREE_REVISION=REVISION;
+
+	public DirtyTrackingNode(){
+		super();
+	}
+
+	public DirtyTrackingNode(String name){
+		super(name);
+	}
+
+	public void markDirty(){
+		long r=++GLOBAL_REVISION;
+		REVISION=r;
+		SUBTREE_REVISION=r;
+		Node p=getParent();
+		while(p!=null){
+			if(p instanceof DirtyTrackingNode){
+				((DirtyTrackingNode)p).SUBTREE_REVISION=r;
+			}
+			p=p.getParent();
+		}
+	}
+
+	@Override
+	public int attachChildAt(Spatial child, int index) {
+		boolean reattach=child.getParent()==this;
+		int out=super.attachChildAt(child,index);
+		if(!reattach)markDirty();
+		return out;
+	}
+
+	@Override
+	public Spatial detachChildAt(int index) {
+		Spatial out=super.detachChildAt(index);
+		if(out!=null)markDirty();
+		return out;
+	}
+
+	@Override
+	protected void updateWorldBound() {
+		super.updateWorldBound();
+		markDirty();
+	}
+}
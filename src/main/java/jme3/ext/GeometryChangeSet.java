@@ -0,0 +1,95 @@
+package jme3.ext;
+
+import java.util.Arrays;
+
+import com.jme3.scene.Geometry;
+
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+
+/**
+ * Geometries changed during one update of the {@link GeometryUpdateDetector}, grouped by kind of change.
+ * A geometry whose transform and mesh changed in the same update is in both groups, 
+ * the combined state of every geometry is kept in detection order for {@link #dispatch(float,GeometryUpdateListener)}.
+ * The change set is reused by the detector, its content is valid only during the call of the listener.
+ *
+ * @author Riccardo Balbo
+ */
+public class GeometryChangeSet{
+
+	public static class GeometryList{
+		private Geometry ITEMS[]=new Geometry[16];
+		private int SIZE=0;
+
+		public int size(){
+			return SIZE;
+		}
+
+		public Geometry get(int i){
+			return ITEMS[i];
+		}
+
+		void add(Geometry g){
+			if(SIZE==ITEMS.length)ITEMS=Arrays.copyOf(ITEMS,SIZE*2);
+			ITEMS[SIZE++]=g;
+		}
+
+		void clear(){
+			Arrays.fill(ITEMS,0,SIZE,null);
+			SIZE=0;
+		}
+	}
+
+	private final GeometryList ADDED=new GeometryList();
+	private final GeometryList REMOVED=new GeometryList();
+	private final GeometryList TRANSFORM_UPDATED=new GeometryList();
+	private final GeometryList MESH_UPDATED=new GeometryList();
+	private final GeometryList CHANGED=new GeometryList();
+	private byte STATES[]=new byte[16];
+
+	public GeometryList getAdded(){
+		return ADDED;
+	}
+
+	public GeometryList getRemoved(){
+		return REMOVED;
+	}
+
+	public GeometryList getTransformUpdated(){
+		return TRANSFORM_UPDATED;
+	}
+
+	public GeometryList getMeshUpdated(){
+		return MESH_UPDATED;
+	}
+
+	public boolean isEmpty(){
+		return CHANGED.SIZE==0;
+	}
+
+	void add(Geometry g,byte state){
+		if(CHANGED.SIZE==STATES.length)STATES=Arrays.copyOf(STATES,CHANGED.SIZE*2);
+		STATES[CHANGED.SIZE]=state;
+		CHANGED.add(g);
+		if((state&GeometryState.NEW_GEOMETRY)!=0)ADDED.add(g);
+		if((state&GeometryState.GEOMETRY_REMOVED)!=0)REMOVED.add(g);
+		if((state&GeometryState.GEOMETRY_TRANFORM_UPDATED)!=0)TRANSFORM_UPDATED.add(g);
+		if((state&GeometryState.GEOMETRY_MESH_UPDATED)!=0)MESH_UPDATED.add(g);
+	}
+
+	void clear(){
+		ADDED.clear();
+		REMOVED.clear();
+		TRANSFORM_UPDATED.clear();
+		MESH_UPDATED.clear();
+		CHANGED.clear();
+	}
+
+	/**
+	 * Call a per geometry listener once for every change in this set, with the same combined state and in the same order
+	 * the detector would use. The return value of the listener is ignored.
+	 */
+	public void dispatch(float tpf,GeometryUpdateListener listener){
+		for(int i=0;i<CHANGED.SIZE;i++)listener.onUpdate(tpf,CHANGED.ITEMS[i],STATES[i]);
+	}
+}
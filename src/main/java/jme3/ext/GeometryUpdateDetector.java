@@ -2,29 +2,48 @@ package jme3.ext;
 
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.jme3.app.Application;
 import com.jme3.app.SimpleApplication;
+import com.jme3.math.Quaternion;
 import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
 import com.jme3.scene.SceneGraphVisitor;
 import com.jme3.scene.Spatial;
 import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.instancing.InstancedGeometry;
 
 import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
-import lombok.extern.log4j.Log4j2;
+import jme3.ext.VertexBufferUpdateTracker.VertexBufferUpdateListener;
 
 /**
  * Detect geometry updates
  * 
+ * By default the whole scene is traversed and compared every frame.
+ * When the event driven mode is enabled and the root is a {@link DirtyTrackingNode}, only the subtrees
+ * stamped as changed since the previous update and the geometries that use an updated vertex buffer are visited.
+ * When the parallel mode is enabled, the comparison of large scenes in full traversal mode is split across a fork/join pool, 
+ * listeners are still called on the calling thread and in traversal order.
+ * Per geometry listeners are not called for unchanged geometries, {@link GeometryChangeSetListener}s receive all the changes of an update at once.
+ * Geometries grouped by a BatchNode or an InstancedNode are not rendered by themselves and are skipped by default, the batches and the 
+ * InstancedGeometries that draw them are tracked instead: a shared instanced mesh is compared once and the moved instances are reported 
+ * as a transform update of their InstancedGeometry.
+ * An optional {@link SpatialChangeIndex} records where the changes happened and sends them to the listeners subscribed to a region.
+ * The cost of each update is reported to the {@link TrackingMetrics} listeners, if any, the single changes are traced by {@link TrackingTrace}.
+ * 
  * @author Riccardo Balbo
  */
-@Log4j2
-public class GeometryUpdateDetector extends SharedBaseAppState{
+public class GeometryUpdateDetector extends SharedBaseAppState implements VertexBufferUpdateListener{
 	
 	public static GeometryUpdateDetector getInstance(SimpleApplication app){
 		GeometryUpdateDetector dbv=app.getStateManager().getState(GeometryUpdateDetector.class);
@@ -41,66 +60,568 @@ public class GeometryUpdateDetector extends SharedBaseAppState{
 		public static final byte  GEOMETRY_MESH_UPDATED          =0x04;
 		public static final byte GEOMETRY_TRANFORM_UPDATED   = 0x08;
 		public static final byte GEOMETRY_REMOVED 						 =0x10;
+		/**
+		 * Set with GEOMETRY_MESH_UPDATED when the update comes from the animation of a skinned mesh and has been throttled
+		 */
+		public static final byte GEOMETRY_ANIMATED						 =0x20;
 		
+		/**
+		 * @return true if every flag of searched_state is set in state, or if both are NONE.
+		 */
 		public static boolean isSet(byte state,byte searched_state){
-			if((state&searched_state)==state)return true;
-			return false;
+			if(searched_state==NONE)return state==NONE;
+			return (state&searched_state)==searched_state;
 		}
 	}
 
 	public static interface GeometryUpdateListener{
 		public boolean onUpdate(float tpf,Geometry g,byte state);
 	}
+	
+	/**
+	 * Listener that receives all the changes detected by an update at once. 
+	 * Geometries are considered processed when they are added, so they are always reported as new only once.
+	 */
+	public static interface GeometryChangeSetListener{
+		public void onChanges(float tpf,GeometryChangeSet changes);
+	}
+	
+	/**
+	 * Feeds a per geometry listener from the change sets.
+	 */
+	public static class GeometryUpdateListenerAdapter implements GeometryChangeSetListener{
+		private final GeometryUpdateListener LISTENER;
+		
+		public GeometryUpdateListenerAdapter(GeometryUpdateListener listener){
+			LISTENER=listener;
+		}
+		
+		@Override
+		public void onChanges(float tpf, GeometryChangeSet changes) {
+			changes.dispatch(tpf,LISTENER);
+		}
+	}
+	
+	/**
+	 * Listener that receives also the details of mesh updates. 
+	 * When registered, it is called in place of {@link GeometryUpdateListener#onUpdate(float,Geometry,byte)}.
+	 */
+	public static interface MeshUpdateListener extends GeometryUpdateListener{
+		/**
+		 * @param update buffers and element ranges changed in the mesh. It's reused by the detector, don't keep a reference.
+		 */
+		public boolean onUpdate(float tpf,Geometry g,byte state,MeshUpdate update);
+	}
+	
+	/**
+	 * Buffers updated in a mesh and, where known, the updated element ranges.
+	 */
+	public static class MeshUpdate{
+		public static final int MAX_RANGES=8;
+		
+		private long UPDATED;
+		private long REMOVED;
+		private final int NUM_RANGES[]=new int[NUM_TYPES];
+		private final int RANGES[][]=new int[NUM_TYPES][MAX_RANGES*2];
+		
+		/**
+		 * @return true if the buffer of this type has been updated, replaced or added
+		 */
+		public boolean isUpdated(Type type){
+			return (UPDATED&(1L<<type.ordinal()))!=0;
+		}
+
+		/**
+		 * @return true if the buffer of this type has been removed from the mesh
+		 */
+		public boolean isRemoved(Type type){
+			return (REMOVED&(1L<<type.ordinal()))!=0;
+		}
+		
+		/**
+		 * @return true if nothing changed in the mesh
+		 */
+		public boolean isEmpty(){
+			return UPDATED==0&&REMOVED==0;
+		}
+
+		/**
+		 * @return the number of updated element ranges of the buffer of this type, up to MAX_RANGES.
+		 */
+		public int getNumRanges(Type type){
+			return isUpdated(type)?NUM_RANGES[type.ordinal()]:0;
+		}
+		
+		/**
+		 * @return first updated element of the i-th range
+		 */
+		public int getRangeStart(Type type,int i){
+			return RANGES[type.ordinal()][i*2];
+		}
+		
+		/**
+		 * @return last updated element + 1 of the i-th range
+		 */
+		public int getRangeEnd(Type type,int i){
+			return RANGES[type.ordinal()][i*2+1];
+		}
+		
+		protected void clear(){
+			UPDATED=0;
+			REMOVED=0;
+		}
+	}
+
+	/**
+	 * Counters of the last update, reported to the {@link TrackingMetrics} listeners. 
+	 * It's reused by the detector, copy it with {@link #set(Metrics)} to keep the values.
+	 */
+	public static class Metrics{
+		private int VISITED;
+		private int SNAPSHOTS;
+		private int NEW;
+		private int MESH_UPDATED;
+		private int TRANSFORM_UPDATED;
+		private int REMOVED;
+		private long DISPATCH_NANOS;
+		private long UPDATE_NANOS;
+
+		/**
+		 * @return number of geometries compared with their snapshot or proposed as new
+		 */
+		public int getGeometriesVisited(){
+			return VISITED;
+		}
+
+		/**
+		 * @return number of snapshots held at the end of the update
+		 */
+		public int getSnapshots(){
+			return SNAPSHOTS;
+		}
+
+		public int getNewGeometries(){
+			return NEW;
+		}
+
+		public int getMeshUpdates(){
+			return MESH_UPDATED;
+		}
+
+		public int getTransformUpdates(){
+			return TRANSFORM_UPDATED;
+		}
+
+		public int getRemovedGeometries(){
+			return REMOVED;
+		}
+
+		/**
+		 * @return nanoseconds spent in the listeners, included in getUpdateNanos()
+		 */
+		public long getDispatchNanos(){
+			return DISPATCH_NANOS;
+		}
+
+		public long getUpdateNanos(){
+			return UPDATE_NANOS;
+		}
+
+		public void set(Metrics m){
+			VISITED=m.VISITED;
+			SNAPSHOTS=m.SNAPSHOTS;
+			NEW=m.NEW;
+			MESH_UPDATED=m.MESH_UPDATED;
+			TRANSFORM_UPDATED=m.TRANSFORM_UPDATED;
+			REMOVED=m.REMOVED;
+			DISPATCH_NANOS=m.DISPATCH_NANOS;
+			UPDATE_NANOS=m.UPDATE_NANOS;
+		}
+
+		/**
+		 * Add the values of m to these, the number of snapshots included.
+		 */
+		public void add(Metrics m){
+			VISITED+=m.VISITED;
+			SNAPSHOTS+=m.SNAPSHOTS;
+			NEW+=m.NEW;
+			MESH_UPDATED+=m.MESH_UPDATED;
+			TRANSFORM_UPDATED+=m.TRANSFORM_UPDATED;
+			REMOVED+=m.REMOVED;
+			DISPATCH_NANOS+=m.DISPATCH_NANOS;
+			UPDATE_NANOS+=m.UPDATE_NANOS;
+		}
+
+		public void clear(){
+			VISITED=0;
+			SNAPSHOTS=0;
+			NEW=0;
+			MESH_UPDATED=0;
+			TRANSFORM_UPDATED=0;
+			REMOVED=0;
+			DISPATCH_NANOS=0;
+			UPDATE_NANOS=0;
+		}
+	}
 
 	protected final Spatial _ROOT;
 	protected Application APP;
 
-	private byte UID=0;
-	private List<Snapshot> SNAPSHOT=new LinkedList<Snapshot>();
+	/**
+	 * Frame generation, incremented every update. 
+	 * It's a long so it never wraps back to the id of a stale snapshot.
+	 */
+	private long UID=0;
+	/**
+	 * Snapshots indexed by geometry identity 
+	 */
+	private final Map<Geometry,Snapshot> SNAPSHOT=new IdentityHashMap<Geometry,Snapshot>();
+	/**
+	 * Same snapshots, packed in an array to allow O(1) removal (swap with last) and cheap sweeps
+	 */
+	private final ArrayList<Snapshot> SNAPSHOT_LIST=new ArrayList<Snapshot>();
+	/**
+	 * Number of snapshots stamped with the current UID
+	 */
+	private int VISITED=0;
 	private VertexBufferUpdateTracker VBTRACKER;
-	private final List<GeometryUpdateListener> _LISTENERS=new LinkedList<GeometryUpdateListener>();
-	
-	
+	private final List<GeometryUpdateListener> _LISTENERS=new ArrayList<GeometryUpdateListener>();
+	private int DETAILED_LISTENERS=0;
+	private final List<GeometryChangeSetListener> _CHANGESET_LISTENERS=new ArrayList<GeometryChangeSetListener>();
+	private SpatialChangeIndex SPATIAL_INDEX;
+	private final GeometryChangeSet CHANGES=new GeometryChangeSet();
+	private final MeshUpdate MESH_UPDATE=new MeshUpdate();
+	private final List<TrackingMetrics> _METRICS_LISTENERS=new ArrayList<TrackingMetrics>();
+	private final Metrics METRICS=new Metrics();
+	/**
+	 * True while an update with metrics listeners is running, the listeners dispatch is timed only then.
+	 */
+	private boolean MEASURE=false;
+	/**
+	 * Snapshots that use a given vertex buffer, used to find the geometries to check when a buffer is updated
+	 */
+	private final Map<VertexBuffer,List<Snapshot>> BUFFER_USERS=new IdentityHashMap<VertexBuffer,List<Snapshot>>();
 
+	private int BUFFER_TRACKING_MODE=TrackingMode.ALL&~TrackingMode.CPU;
+	private boolean EVENT_DRIVEN=false;
+	/**
+	 * Maximum difference of each transform component still considered unchanged
+	 */
+	private float TRANSFORM_EPSILON=0;
+	/**
+	 * Mesh updates reported per second for the animation driven buffers of skinned meshes, 0 to report them all
+	 */
+	private float ANIMATED_REFRESH_RATE=0;
+	private static final long ANIMATED_BUFFERS=(1L<<Type.Position.ordinal())|(1L<<Type.Normal.ordinal())
+			|(1L<<Type.Tangent.ordinal())|(1L<<Type.Binormal.ordinal());
+	/**
+	 * Sum of the tpf of every update
+	 */
+	private float TIME=0;
+	private boolean TRACK_GROUPED=false;
+	private static final long INSTANCE_DATA=1L<<Type.InstanceData.ordinal();
+	
+	private static final byte SERIAL_CHECK=-1;
+	private boolean PARALLEL=false;
+	private int PARALLEL_THRESHOLD=4096;
+	private int PARALLEL_BATCH=1024;
+	private ForkJoinPool POOL;
+	private boolean OWN_POOL;
+	/**
+	 * Geometries found by the traversal and their snapshots, used by the parallel mode
+	 */
+	private Geometry FRAME_GEOMETRIES[]=new Geometry[0];
+	private Snapshot FRAME_SNAPSHOTS[]=new Snapshot[0];
+	private int FRAME_SIZE=0;
+	private boolean FULL_SWEEP_NEEDED=false;
+	/**
+	 * Global DirtyTrackingNode revision at the beginning of the last event driven update
+	 */
+	private long LAST_SCAN_REVISION=-1;
+	private final Map<DirtyTrackingNode,Owner> OWNERS=new IdentityHashMap<DirtyTrackingNode,Owner>();
+	/**
+	 * Snapshots that use a vertex buffer updated since the last event driven update
+	 */
+	private final List<Snapshot> PENDING=new ArrayList<Snapshot>();
+	/**
+	 * Snapshots with throttled animation updates, checked again by the next event driven update
+	 */
+	private final List<Snapshot> THROTTLED=new ArrayList<Snapshot>();
 
-	private static class VbSnapshot{
-		public long timestamp;
-		public VertexBuffer buffer;
+	/**
+	 * A DirtyTrackingNode and the snapshots of the geometries it contains directly or through non tracking nodes.
+	 */
+	private static class Owner{
+		public DirtyTrackingNode node;
+		public Owner parent;
+		public long update_id=-1;
+		public List<Owner> children=new ArrayList<Owner>();
+		public List<Snapshot> snapshots=new ArrayList<Snapshot>();
 	}
+
+	private static final int NUM_TYPES=Type.values().length;
+	
 	private static class Snapshot{
 		public Geometry geom;
-		public byte update_id=-1;
-		public List<VbSnapshot> vbsnapshots=new ArrayList<VbSnapshot>();
-		public Transform transforms;
+		public long update_id=-1;
+		public int index=-1;
+		public Owner owner;
+		public int owner_index=-1;
+		public boolean pending;
+		/**
+		 * Known buffers and their versions, indexed by VertexBuffer.Type ordinal
+		 */
+		public final VertexBuffer buffers[]=new VertexBuffer[NUM_TYPES];
+		public final long versions[]=new long[NUM_TYPES];
+		/**
+		 * Number of updates of each known buffer at the last check
+		 */
+		public final long update_counts[]=new long[NUM_TYPES];
+		/**
+		 * Bitmask of the ordinals of the known buffers
+		 */
+		public long buffers_mask;
+		/**
+		 * Buffers updated, added and removed in the last call of getGeometryState
+		 */
+		public long updated_mask;
+		public long new_mask;
+		public long removed_mask;
+		/**
+		 * Buffers updated more than once since the previous check: the ranges of the last update don't cover the previous ones
+		 */
+		public long missed_mask;
+		/**
+		 * State computed by the parallel comparison, SERIAL_CHECK if it must be computed on the update thread
+		 */
+		public byte parallel_state;
+		/**
+		 * World transform: translation(3), rotation(4), scale(3)
+		 */
+		public final float transform[]=new float[10];
+		public boolean has_transform;
+		/**
+		 * Last seen revision of a {@link TransformTrackingGeometry}
+		 */
+		public long transform_revision;
+		/**
+		 * Animation driven buffers updated but not reported yet, and the time of the last report
+		 */
+		public long throttled_mask;
+		public float animated_time;
+		/**
+		 * Buffers reported after being throttled, their whole range is reported as updated
+		 */
+		public long flushed_mask;
 	}
 	
 	protected Snapshot doSnapshot(Geometry geom){
-		LOGGER.debug("Do snapshot for {}",geom);
+		if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.SNAPSHOT,geom);
 		Snapshot sn=new Snapshot();
 		sn.geom=geom;
 		sn.update_id=UID;
-		sn.transforms=geom.getWorldTransform().clone();
 		getGeometryState(geom,sn);
-		SNAPSHOT.add(sn);
+		sn.index=SNAPSHOT_LIST.size();
+		SNAPSHOT_LIST.add(sn);
+		SNAPSHOT.put(geom,sn);
+		VISITED++;
 		return sn;
 	}
 	
 	
 	protected Snapshot getSnapshot(Spatial g){
-		for(Snapshot sn:SNAPSHOT){
-			if(sn.geom==g){
+		Snapshot sn=SNAPSHOT.get(g);
+		if(sn!=null){
+			if(sn.update_id!=UID){
 				sn.update_id=UID;
-				return sn;
+				VISITED++;
 			}
+			return sn;
 		}
-		LOGGER.debug("No available snapshot for {} {}",g.hashCode(),g.getName());
-		if(LOGGER.isDebugEnabled()){
-			for(Snapshot sn:SNAPSHOT){
-				LOGGER.debug("- Snapshot of {} {}",sn.geom.hashCode(),sn.geom.getName());
+		return null;
+	}
+	
+	protected void removeSnapshot(Snapshot sn){
+		if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.REMOVED,sn.geom);
+		SNAPSHOT.remove(sn.geom);
+		int last=SNAPSHOT_LIST.size()-1;
+		Snapshot moved=SNAPSHOT_LIST.remove(last);
+		if(moved!=sn){
+			SNAPSHOT_LIST.set(sn.index,moved);
+			moved.index=sn.index;
+		}
+		sn.index=-1;
+		setOwner(sn,null);
+		for(int i=0;i<NUM_TYPES;i++){
+			if(sn.buffers[i]!=null)removeBufferUser(sn.buffers[i],sn);
+		}
+	}
+	
+	private void setOwner(Snapshot sn,Owner owner){
+		if(sn.owner==owner)return;
+		if(sn.owner!=null){
+			List<Snapshot> owned=sn.owner.snapshots;
+			Snapshot moved=owned.remove(owned.size()-1);
+			if(moved!=sn){
+				owned.set(sn.owner_index,moved);
+				moved.owner_index=sn.owner_index;
 			}
-			
+			sn.owner_index=-1;
 		}
-		return null;
+		sn.owner=owner;
+		if(owner!=null){
+			sn.owner_index=owner.snapshots.size();
+			owner.snapshots.add(sn);
+		}
+	}
+	
+	private void addBufferUser(VertexBuffer vb,Snapshot sn){
+		List<Snapshot> users=BUFFER_USERS.get(vb);
+		if(users==null){
+			users=new ArrayList<Snapshot>(1);
+			BUFFER_USERS.put(vb,users);
+		}
+		users.add(sn);
+	}
+	
+	private void removeBufferUser(VertexBuffer vb,Snapshot sn){
+		List<Snapshot> users=BUFFER_USERS.get(vb);
+		if(users==null)return;
+		users.remove(sn);
+		if(users.isEmpty())BUFFER_USERS.remove(vb);
+	}
+	
+	/**
+	 * Set the {@link TrackingMode} requested to the VertexBufferUpdateTracker for the buffers of the tracked geometries.
+	 * Default is everything but CPU. Applies to buffers seen after the call.
+	 */
+	public void setBufferTrackingMode(int mode){
+		BUFFER_TRACKING_MODE=mode;
+	}
+	
+	public int getBufferTrackingMode(){
+		return BUFFER_TRACKING_MODE;
+	}
+	
+	/**
+	 * Enable or disable the parallel comparison. 
+	 * It's used only in full traversal mode and when the scene contains at least getParallelThreshold() geometries.
+	 * Vertex buffers of the tracked meshes must not be modified by other threads during the update.
+	 */
+	public void setParallel(boolean v){
+		PARALLEL=v;
+	}
+	
+	public boolean isParallel(){
+		return PARALLEL;
+	}
+	
+	/**
+	 * Set the minimum number of geometries needed to run the comparison in parallel and the number of geometries compared by each task.
+	 */
+	public void setParallelThreshold(int threshold,int batch){
+		PARALLEL_THRESHOLD=threshold;
+		PARALLEL_BATCH=Math.max(1,batch);
+	}
+	
+	public int getParallelThreshold(){
+		return PARALLEL_THRESHOLD;
+	}
+	
+	/**
+	 * Set the pool used by the parallel mode. If not set a pool with one thread per core is created when needed and shut down on cleanup.
+	 */
+	public void setForkJoinPool(ForkJoinPool pool){
+		if(OWN_POOL)POOL.shutdown();
+		POOL=pool;
+		OWN_POOL=false;
+	}
+	
+	/**
+	 * Enable or disable the event driven mode.
+	 * It has effect only if the root is a {@link DirtyTrackingNode}, otherwise the full traversal is used.
+	 * In this mode geometries are checked only when a DirtyTrackingNode in their path is stamped as changed 
+	 * or when one of their vertex buffers is updated, new geometries refused by every listener are not proposed again 
+	 * until something changes in their subtree.
+	 * Geometries should be grouped under DirtyTrackingNodes, since every non tracking child of a changed node is checked.
+	 * Changes that reach the tracking nodes only through the bound refresh (eg. a geometry detached from a non tracking node) 
+	 * are reported one frame later.
+	 * The event driven update is always serial, with a root that is not a DirtyTrackingNode the full traversal (parallel if enabled) is used.
+	 */
+	public void setEventDriven(boolean v){
+		if(v==EVENT_DRIVEN)return;
+		EVENT_DRIVEN=v;
+		if(v){
+			LAST_SCAN_REVISION=-1;
+			FULL_SWEEP_NEEDED=true;
+		}else{
+			for(Snapshot sn:SNAPSHOT_LIST){
+				sn.owner=null;
+				sn.owner_index=-1;
+				sn.pending=false;
+			}
+			OWNERS.clear();
+			PENDING.clear();
+			THROTTLED.clear();
+		}
+	}
+	
+	public boolean isEventDriven(){
+		return EVENT_DRIVEN;
+	}
+	
+	/**
+	 * Set the maximum difference of each component of the world transform (translation, rotation quaternion, scale) 
+	 * that is not reported as a transform update. Default is 0, exact comparison.
+	 * Small movements are not lost: they are compared against the last reported transform, so they are reported once they add up.
+	 */
+	public void setTransformEpsilon(float epsilon){
+		TRANSFORM_EPSILON=Math.max(0,epsilon);
+	}
+	
+	public float getTransformEpsilon(){
+		return TRANSFORM_EPSILON;
+	}
+	
+	/**
+	 * Track also the geometries grouped by a BatchNode or an InstancedNode, that are drawn by their batch or InstancedGeometry. Default is false.
+	 * Applies from the next update, the geometries that are no longer tracked are reported as removed.
+	 */
+	public void setTrackGroupedGeometries(boolean v){
+		if(v==TRACK_GROUPED)return;
+		TRACK_GROUPED=v;
+		LAST_SCAN_REVISION=-1; // The event driven update rescans the whole scene
+	}
+	
+	public boolean isTrackGroupedGeometries(){
+		return TRACK_GROUPED;
+	}
+	
+	private boolean isTracked(Geometry g){
+		return TRACK_GROUPED||!g.isGrouped();
+	}
+	
+	/**
+	 * Throttle the mesh updates of animated meshes (see {@link #isAnimated(Mesh)}).
+	 * Updates of their Position, Normal, Tangent and Binormal buffers are reported at most rate times per second, 
+	 * with GEOMETRY_MESH_UPDATED|GEOMETRY_ANIMATED and the whole buffers as updated range. 
+	 * The last update of an animation that stops is reported too, when its time comes.
+	 * Other buffers, and animated buffers replaced or removed, are reported immediately. Default is 0, no throttling.
+	 */
+	public void setAnimatedRefreshRate(float rate){
+		ANIMATED_REFRESH_RATE=Math.max(0,rate);
+	}
+	
+	public float getAnimatedRefreshRate(){
+		return ANIMATED_REFRESH_RATE;
+	}
+	
+	/**
+	 * @return true if the buffers of this mesh are driven by an animation: it has a bind pose, used by software skinning, 
+	 * or hardware skinning buffers.
+	 */
+	protected boolean isAnimated(Mesh m){
+		return m.getBuffer(Type.BindPosePosition)!=null||m.getBuffer(Type.HWBoneIndex)!=null;
 	}
 	
 	public GeometryUpdateDetector(Spatial rootNode){
@@ -110,117 +631,576 @@ public class GeometryUpdateDetector extends SharedBaseAppState{
 	@Override
 	public void initialize(Application app) {
 		VBTRACKER=VertexBufferUpdateTracker.getInstance(app);		
+		VBTRACKER.addListener(this);
 		this.APP=app;		
 	}
+	
+	@Override
+	public void onUpdate(VertexBuffer vb) {
+		if(!isDirtyTracking())return; // PENDING is drained only by the event driven update
+		List<Snapshot> users=BUFFER_USERS.get(vb);
+		if(users==null)return;
+		for(int i=0;i<users.size();i++){
+			Snapshot sn=users.get(i);
+			if(!sn.pending){
+				sn.pending=true;
+				PENDING.add(sn);
+			}
+		}
+	}
 
 	@Override
 	public void update(final float tpf) {
-//		LOGGER.debug("{}",this.isEnabled());
+		MEASURE=!_METRICS_LISTENERS.isEmpty();
+		long start=MEASURE?System.nanoTime():0;
+		METRICS.clear();
 		UID++;
-		_ROOT.depthFirstTraversal(new SceneGraphVisitor(){
-			@Override
-			public void visit(Spatial spatial) {
-				if(!(spatial instanceof Geometry)) return;
-
-				Geometry geom=(Geometry)spatial;
-				
-				Snapshot snapshot=getSnapshot(spatial);
-				if(snapshot==null){
-					boolean processed=onUpdate(tpf,geom,GeometryState.NEW_GEOMETRY);
-					if(processed)doSnapshot(geom);
-				}else{
-					byte action=getGeometryState(geom,snapshot);
-					onUpdate(tpf,geom,action);
-				}
+		VISITED=0;
+		TIME+=tpf;
+		detect(tpf);
+		long dispatchStart=MEASURE?System.nanoTime():0;
+		// The index is updated also when nothing changed, to clear the changes of the previous update
+		if(SPATIAL_INDEX!=null)SPATIAL_INDEX.update(tpf,CHANGES);
+		if(!_CHANGESET_LISTENERS.isEmpty()&&!CHANGES.isEmpty()){
+			for(int i=0;i<_CHANGESET_LISTENERS.size();i++)_CHANGESET_LISTENERS.get(i).onChanges(tpf,CHANGES);
+		}
+		if(MEASURE)METRICS.DISPATCH_NANOS+=System.nanoTime()-dispatchStart;
+		CHANGES.clear();
+		if(MEASURE){
+			MEASURE=false;
+			METRICS.SNAPSHOTS=SNAPSHOT_LIST.size();
+			METRICS.UPDATE_NANOS=System.nanoTime()-start;
+			for(int i=0;i<_METRICS_LISTENERS.size();i++)_METRICS_LISTENERS.get(i).onDetectorMetrics(this,METRICS);
+		}
+	}
+	
+	/**
+	 * @return true if the event driven mode is in use, it's never run in parallel
+	 */
+	private boolean isDirtyTracking(){
+		return EVENT_DRIVEN&&_ROOT instanceof DirtyTrackingNode;
+	}
+	
+	private void detect(float tpf){
+		if(isDirtyTracking()){
+			updateDirty(tpf);
+			if(!FULL_SWEEP_NEEDED)return;
+			FULL_SWEEP_NEEDED=false;
+		}else{
+			if(PARALLEL)updateParallel(tpf);
+			else{
+				TRAVERSAL_TPF=tpf;
+				_ROOT.depthFirstTraversal(TRAVERSAL_VISITOR);
 			}
-		});
+			// If every snapshot has been stamped with the current generation nothing has been removed, skip the sweep.
+			if(VISITED==SNAPSHOT_LIST.size())return;
+		}
 
 		// Remove references to removed geometries.
-		Iterator<Snapshot> snapshots_i=SNAPSHOT.iterator();
-		while(snapshots_i.hasNext()){
-			Snapshot entry=snapshots_i.next();
+		for(int i=SNAPSHOT_LIST.size()-1;i>=0;i--){
+			Snapshot entry=SNAPSHOT_LIST.get(i);
 			if(entry.update_id!=UID){
 				Geometry g=entry.geom;
 				onUpdate(tpf,g,GeometryState.GEOMETRY_REMOVED);
-				snapshots_i.remove();
-				LOGGER.debug("{} is removed! {}!={}",g,entry.update_id,UID);
+				removeSnapshot(entry);
+			}
+		}
+	}
+
+	private float TRAVERSAL_TPF;
+	private final SceneGraphVisitor TRAVERSAL_VISITOR=new SceneGraphVisitor(){
+		@Override
+		public void visit(Spatial spatial) {
+			if(!(spatial instanceof Geometry)||!isTracked((Geometry)spatial)) return;
+			visitGeometry(TRAVERSAL_TPF,(Geometry)spatial,null);
+		}
+	};
+
+	private final SceneGraphVisitor COLLECT_VISITOR=new SceneGraphVisitor(){
+		@Override
+		public void visit(Spatial spatial) {
+			if(!(spatial instanceof Geometry)||!isTracked((Geometry)spatial)) return;
+			Geometry geom=(Geometry)spatial;
+			if(FRAME_SIZE==FRAME_GEOMETRIES.length){
+				int size=Math.max(64,FRAME_SIZE*2);
+				FRAME_GEOMETRIES=Arrays.copyOf(FRAME_GEOMETRIES,size);
+				FRAME_SNAPSHOTS=Arrays.copyOf(FRAME_SNAPSHOTS,size);
+			}
+			// Makes sure the lazily created buffer array exists and the world transform is refreshed before they are read concurrently:
+			// the refresh writes also the parents, shared with other geometries, and the revision of a TransformTrackingGeometry
+			geom.getMesh().getBufferList().getArray();
+			geom.getWorldTransform();
+			FRAME_GEOMETRIES[FRAME_SIZE]=geom;
+			FRAME_SNAPSHOTS[FRAME_SIZE]=getSnapshot(geom);
+			FRAME_SIZE++;
+		}
+	};
+	
+	private class CompareTask extends RecursiveAction{
+		private static final long serialVersionUID=1L;
+		private final int FROM,TO;
+		
+		public CompareTask(int from,int to){
+			FROM=from;
+			TO=to;
+		}
+		
+		@Override
+		protected void compute() {
+			if(TO-FROM<=PARALLEL_BATCH){
+				compare(FROM,TO);
+			}else{
+				int mid=(FROM+TO)>>>1;
+				invokeAll(new CompareTask(FROM,mid),new CompareTask(mid,TO));
+			}
+		}
+	}
+	
+	/**
+	 * Compare geometries and snapshots in the given range of the frame arrays. 
+	 * Geometries whose buffers have been added, replaced or removed are left to the update thread, 
+	 * since that updates the shared buffer index and the tracker.
+	 */
+	private void compare(int from,int to){
+		for(int i=from;i<to;i++){
+			Snapshot sn=FRAME_SNAPSHOTS[i];
+			if(sn==null)continue;
+			Geometry g=FRAME_GEOMETRIES[i];
+			sn.parallel_state=hasSameBuffers(g,sn)?getGeometryState(g,sn):SERIAL_CHECK;
+		}
+	}
+	
+	private static boolean hasSameBuffers(Geometry g,Snapshot sn){
+		VertexBuffer buffers[]=g.getMesh().getBufferList().getArray();
+		long mask=0;
+		for(int i=0;i<buffers.length;i++){
+			VertexBuffer b=buffers[i];
+			int t=b.getBufferType().ordinal();
+			if(sn.buffers[t]!=b)return false;
+			mask|=1L<<t;
+		}
+		if(g instanceof InstancedGeometry){
+			VertexBuffer instances=((InstancedGeometry)g).getTransformUserInstanceData();
+			if(instances!=null){
+				if(sn.buffers[Type.InstanceData.ordinal()]!=instances)return false;
+				mask|=INSTANCE_DATA;
+			}
+		}
+		return mask==sn.buffers_mask;
+	}
+	
+	private void updateParallel(float tpf){
+		FRAME_SIZE=0;
+		_ROOT.depthFirstTraversal(COLLECT_VISITOR);
+		
+		if(FRAME_SIZE<PARALLEL_THRESHOLD){
+			compare(0,FRAME_SIZE);
+		}else{
+			if(POOL==null){
+				POOL=new ForkJoinPool();
+				OWN_POOL=true;
+			}
+			POOL.invoke(new CompareTask(0,FRAME_SIZE));
+		}
+		
+		// Dispatch in traversal order
+		METRICS.VISITED+=FRAME_SIZE;
+		for(int i=0;i<FRAME_SIZE;i++){
+			Geometry geom=FRAME_GEOMETRIES[i];
+			Snapshot snapshot=FRAME_SNAPSHOTS[i];
+			if(snapshot==null){
+				boolean processed=onUpdate(tpf,geom,GeometryState.NEW_GEOMETRY);
+				if(processed)doSnapshot(geom);
+			}else{
+				byte action=snapshot.parallel_state;
+				if(action==SERIAL_CHECK)action=getGeometryState(geom,snapshot);
+				onUpdate(tpf,geom,action,snapshot);
+			}
+		}
+		Arrays.fill(FRAME_GEOMETRIES,0,FRAME_SIZE,null);
+		Arrays.fill(FRAME_SNAPSHOTS,0,FRAME_SIZE,null);
+	}
+
+	private void visitGeometry(float tpf,Geometry geom,Owner owner){
+		METRICS.VISITED++;
+		Snapshot snapshot=getSnapshot(geom);
+		if(snapshot==null){
+			boolean processed=onUpdate(tpf,geom,GeometryState.NEW_GEOMETRY);
+			if(processed)snapshot=doSnapshot(geom);
+		}else{
+			byte action=getGeometryState(geom,snapshot);
+			onUpdate(tpf,geom,action,snapshot);
+		}
+		if(snapshot!=null&&owner!=null)setOwner(snapshot,owner);
+	}
+
+	protected void updateDirty(float tpf){
+		long scanRevision=DirtyTrackingNode.getCurrentRevision();
+		DirtyTrackingNode root=(DirtyTrackingNode)_ROOT;
+		if(root.getSubtreeRevision()>LAST_SCAN_REVISION||!OWNERS.containsKey(root))scanNode(tpf,root,null,false);
+		LAST_SCAN_REVISION=scanRevision;
+
+		// Geometries whose buffers have been updated
+		for(int i=0;i<PENDING.size();i++){
+			Snapshot sn=PENDING.get(i);
+			sn.pending=false;
+			if(sn.index==-1||sn.update_id==UID)continue; // Removed or already checked in this update
+			sn.update_id=UID;
+			METRICS.VISITED++;
+			onUpdate(tpf,sn.geom,getGeometryState(sn.geom,sn),sn);
+		}
+		PENDING.clear();
+
+		// Throttled animations are checked until their last update is reported
+		for(int i=0;i<THROTTLED.size();i++){
+			Snapshot sn=THROTTLED.get(i);
+			if(sn.index==-1||sn.throttled_mask==0||sn.pending)continue;
+			sn.pending=true;
+			PENDING.add(sn);
+		}
+		THROTTLED.clear();
+	}
+
+	private void scanNode(float tpf,DirtyTrackingNode node,Owner parent,boolean force){
+		Owner owner=OWNERS.get(node);
+		if(owner==null){
+			owner=new Owner();
+			owner.node=node;
+			OWNERS.put(node,owner);
+			force=true;
+		}
+		setParent(owner,parent);
+		owner.update_id=UID;
+		
+		boolean contentChanged=force||node.getRevision()>LAST_SCAN_REVISION;
+		for(int i=0;i<node.getQuantity();i++){
+			Spatial child=node.getChild(i);
+			if(child instanceof DirtyTrackingNode){
+				visitTrackingNode(tpf,(DirtyTrackingNode)child,owner,force);
+			}else if(contentChanged){
+				scanContent(tpf,child,owner,force);
+			}
+		}
+		
+		if(!contentChanged)return;
+		List<Snapshot> owned=owner.snapshots;
+		for(int i=owned.size()-1;i>=0;i--){
+			Snapshot sn=owned.get(i);
+			if(sn.update_id!=UID){
+				onUpdate(tpf,sn.geom,GeometryState.GEOMETRY_REMOVED);
+				removeSnapshot(sn);
 			}
 		}
+		List<Owner> children=owner.children;
+		for(int i=children.size()-1;i>=0;i--){
+			Owner child=children.get(i);
+			if(child.update_id!=UID)removeOwner(tpf,child);
+		}
+	}
+
+	private void visitTrackingNode(float tpf,DirtyTrackingNode node,Owner parent,boolean force){
+		Owner owner=OWNERS.get(node);
+		if(force||owner==null||owner.parent!=parent||node.getSubtreeRevision()>LAST_SCAN_REVISION){
+			scanNode(tpf,node,parent,force);
+		}else{
+			owner.update_id=UID;
+		}
+	}
+	
+	/**
+	 * Visit a subtree made of non tracking nodes
+	 */
+	private void scanContent(float tpf,Spatial s,Owner owner,boolean force){
+		if(s instanceof Geometry){
+			if(isTracked((Geometry)s))visitGeometry(tpf,(Geometry)s,owner);
+		}else if(s instanceof Node){
+			Node n=(Node)s;
+			for(int i=0;i<n.getQuantity();i++){
+				Spatial child=n.getChild(i);
+				if(child instanceof DirtyTrackingNode)visitTrackingNode(tpf,(DirtyTrackingNode)child,owner,force);
+				else scanContent(tpf,child,owner,force);
+			}
+		}
+	}
+	
+	private void setParent(Owner owner,Owner parent){
+		if(owner.parent==parent)return;
+		if(owner.parent!=null)owner.parent.children.remove(owner);
+		owner.parent=parent;
+		if(parent!=null)parent.children.add(owner);
+	}
+	
+	private void removeOwner(float tpf,Owner owner){
+		setParent(owner,null);
+		// Moved somewhere else in the tracked scene, it will be linked by its new parent.
+		if(isAttached(owner.node))return;
+		for(int i=owner.children.size()-1;i>=0;i--)removeOwner(tpf,owner.children.get(i));
+		List<Snapshot> owned=owner.snapshots;
+		for(int i=owned.size()-1;i>=0;i--){
+			Snapshot sn=owned.get(i);
+			onUpdate(tpf,sn.geom,GeometryState.GEOMETRY_REMOVED);
+			removeSnapshot(sn);
+		}
+		OWNERS.remove(owner.node);
+	}
+	
+	private boolean isAttached(Spatial s){
+		while(s!=null){
+			if(s==_ROOT)return true;
+			s=s.getParent();
+		}
+		return false;
 	}
 
+	/**
+	 * Compare the geometry with its snapshot and update the snapshot.
+	 * This doesn't allocate unless the geometry uses a vertex buffer that hasn't been seen before.
+	 */
 	protected byte getGeometryState(Geometry g,Snapshot snapshot) {
 		byte state=GeometryState.NONE;
-		if(snapshot.transforms==null||!snapshot.transforms.equals(g.getWorldTransform())){
-			snapshot.transforms=g.getWorldTransform().clone();
+		if(updateTransform(g,snapshot)){
 			state|=GeometryState.GEOMETRY_TRANFORM_UPDATED;
-			LOGGER.debug("Transform updated!");
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.TRANSFORM,g);
 		}
 		
 		Mesh m=g.getMesh();		
-		List<VbSnapshot>	snapshottedBf=new LinkedList<VbSnapshot>();
-		List<VbSnapshot>	vbsnapshots=snapshot.vbsnapshots;		
-		boolean updateNeeded=false;
-		VertexBuffer buffers[]=(VertexBuffer[])m.getBufferList().toArray();
-		for(VertexBuffer b:buffers){
-			VbSnapshot vbsnapshot=null;
-			for(VbSnapshot s:vbsnapshots){
-				if(s.buffer==b){
-					vbsnapshot=s;
-					snapshottedBf.add(s);
-					break;
-				}
-			}
-			if(vbsnapshot==null){ // If the buffer has never been snapshotted (mesh has a new buffer..)
-				vbsnapshot=new VbSnapshot();
-				vbsnapshot.buffer=b;
-				VBTRACKER.add(b,TrackingMode.ALL&~TrackingMode.CPU);
-				vbsnapshot.timestamp=VBTRACKER.getLastUpdateTimestamp(b); // Could be tracked by something else
-				vbsnapshots.add(vbsnapshot);
-				snapshottedBf.add(vbsnapshot);
+		long mask=0;
+		long updated=0;
+		long added=0;
+		long missed=0;
+		VertexBuffer buffers[]=m.getBufferList().getArray();
+		// The instance transforms of an InstancedGeometry are checked as one more buffer
+		VertexBuffer instances=g instanceof InstancedGeometry?((InstancedGeometry)g).getTransformUserInstanceData():null;
+		for(int i=0;i<=buffers.length;i++){
+			VertexBuffer b=i<buffers.length?buffers[i]:instances;
+			if(b==null)continue;
+			int t=b.getBufferType().ordinal();
+			mask|=1L<<t;
+			if(snapshot.buffers[t]!=b){ // If the buffer has never been snapshotted (mesh has a new buffer..)
+				if(snapshot.buffers[t]!=null)removeBufferUser(snapshot.buffers[t],snapshot);
+				snapshot.buffers[t]=b;
+				VBTRACKER.add(b,BUFFER_TRACKING_MODE);
+				snapshot.versions[t]=VBTRACKER.getVersion(b); // Could be tracked by something else
+				snapshot.update_counts[t]=VBTRACKER.getUpdateCount(b);
+				addBufferUser(b,snapshot);
 
-				updateNeeded=true;
-				LOGGER.debug("VertexBuffer {} has not available snapshot",b.getBufferType());
+				added|=1L<<t;
+				if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.BUFFER_ADDED,g,t,0);
 			}else{ // If buffer has already been snapshotted (this buffer is already known) 
-				long updatets=VBTRACKER.getLastUpdateTimestamp(b);
-				if(updatets>vbsnapshot.timestamp){ // If vb has been updated from latest snapshot
-					LOGGER.debug("VertexBuffer {} has been updated. Old timestamp {} New timestamp {}",b.getBufferType(),vbsnapshot.timestamp,updatets);
-					vbsnapshot.timestamp=updatets;
-					updateNeeded=true;
+				long version=VBTRACKER.getVersion(b);
+				if(version>snapshot.versions[t]){ // If vb has been updated from latest snapshot
+					if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.BUFFER_UPDATED,g,t,version);
+					snapshot.versions[t]=version;
+					long count=VBTRACKER.getUpdateCount(b);
+					if(count-snapshot.update_counts[t]>1)missed|=1L<<t;
+					snapshot.update_counts[t]=count;
+					updated|=1L<<t;
 				}
 			}
 		}
-		Iterator<VbSnapshot> sn_i=vbsnapshots.iterator();
-		while(sn_i.hasNext()){
-			VbSnapshot sn=sn_i.next();
-			if(!snapshottedBf.contains(sn))sn_i.remove();
+		
+		// Forget buffers removed from the mesh
+		long removed=snapshot.buffers_mask&~mask;
+		for(long r=removed;r!=0;r&=r-1){
+			int t=Long.numberOfTrailingZeros(r);
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.BUFFER_REMOVED,g,t,0);
+			removeBufferUser(snapshot.buffers[t],snapshot);
+			snapshot.buffers[t]=null;
+			snapshot.versions[t]=0;
+			snapshot.update_counts[t]=0;
+		}
+		snapshot.buffers_mask=mask;
+		if(instances!=null&&((updated|added|removed)&INSTANCE_DATA)!=0){
+			state|=GeometryState.GEOMETRY_TRANFORM_UPDATED;
+			updated&=~INSTANCE_DATA;
+			added&=~INSTANCE_DATA;
+			removed&=~INSTANCE_DATA;
 		}
-		if(updateNeeded)state|=GeometryState.GEOMETRY_MESH_UPDATED;
+		snapshot.flushed_mask=0;
+		if(snapshot.throttled_mask!=0||ANIMATED_REFRESH_RATE>0&&isAnimated(m))updated=throttle(snapshot,m,updated,added|removed);
+		snapshot.updated_mask=updated|added;
+		snapshot.new_mask=added;
+		snapshot.removed_mask=removed;
+		snapshot.missed_mask=missed; // Throttled buffers are reported whole when flushed
+		
+		if((updated|added|removed)!=0)state|=GeometryState.GEOMETRY_MESH_UPDATED;
+		if(snapshot.flushed_mask!=0)state|=GeometryState.GEOMETRY_ANIMATED;
 		return state;
 	}
+	
+	/**
+	 * Hold back the updates of the animation driven buffers until the refresh interval has elapsed.
+	 * @return the updated buffers to report now
+	 */
+	private long throttle(Snapshot snapshot,Mesh m,long updated,long replaced){
+		snapshot.throttled_mask=(snapshot.throttled_mask|(updated&ANIMATED_BUFFERS))&~replaced&snapshot.buffers_mask;
+		updated&=~ANIMATED_BUFFERS;
+		if(snapshot.throttled_mask!=0){
+			// Flushed also when the throttling has been disabled or the mesh is no longer animated
+			if(ANIMATED_REFRESH_RATE==0||TIME-snapshot.animated_time>=1f/ANIMATED_REFRESH_RATE||!isAnimated(m)){
+				snapshot.animated_time=TIME;
+				snapshot.flushed_mask=snapshot.throttled_mask;
+				updated|=snapshot.throttled_mask;
+				snapshot.throttled_mask=0;
+			}else if(isDirtyTracking())THROTTLED.add(snapshot); // Only the event driven update needs them, and it's serial
+		}
+		return updated;
+	}
+	
+	/**
+	 * Compare the world transform with the one stored in the snapshot and copy it if it differs.
+	 * The comparison is skipped if the geometry is a {@link TransformTrackingGeometry} whose world transform hasn't been refreshed.
+	 * @return true if the transform has changed
+	 */
+	private boolean updateTransform(Geometry g,Snapshot snapshot){
+		Transform tr=g.getWorldTransform(); // Refreshes the world transform, and the revision, if needed
+		if(g instanceof TransformTrackingGeometry){
+			long revision=((TransformTrackingGeometry)g).getTransformRevision();
+			if(snapshot.has_transform&&revision==snapshot.transform_revision)return false;
+			snapshot.transform_revision=revision;
+		}
+		float t[]=snapshot.transform;
+		float e=TRANSFORM_EPSILON;
+		Vector3f tl=tr.getTranslation();
+		Quaternion rt=tr.getRotation();
+		Vector3f sc=tr.getScale();
+		if(snapshot.has_transform
+				&&near(t[0],tl.x,e)&&near(t[1],tl.y,e)&&near(t[2],tl.z,e)
+				&&near(t[3],rt.getX(),e)&&near(t[4],rt.getY(),e)&&near(t[5],rt.getZ(),e)&&near(t[6],rt.getW(),e)
+				&&near(t[7],sc.x,e)&&near(t[8],sc.y,e)&&near(t[9],sc.z,e)) return false;
+		t[0]=tl.x;
+		t[1]=tl.y;
+		t[2]=tl.z;
+		t[3]=rt.getX();
+		t[4]=rt.getY();
+		t[5]=rt.getZ();
+		t[6]=rt.getW();
+		t[7]=sc.x;
+		t[8]=sc.y;
+		t[9]=sc.z;
+		snapshot.has_transform=true;
+		return true;
+	}
+	
+	private static boolean near(float a,float b,float epsilon){
+		return a==b||Math.abs(a-b)<=epsilon;
+	}
 
 	public void addListener(GeometryUpdateListener listener){
 		if(!_LISTENERS.contains(listener)){
-			for(Snapshot sn:SNAPSHOT)listener.onUpdate(-1,sn.geom,GeometryState.NEW_GEOMETRY);
+			MESH_UPDATE.clear();
+			for(Snapshot sn:SNAPSHOT_LIST){
+				if(listener instanceof MeshUpdateListener)((MeshUpdateListener)listener).onUpdate(-1,sn.geom,GeometryState.NEW_GEOMETRY,MESH_UPDATE);
+				else listener.onUpdate(-1,sn.geom,GeometryState.NEW_GEOMETRY);
+			}
 			_LISTENERS.add(listener);
+			if(listener instanceof MeshUpdateListener)DETAILED_LISTENERS++;
 		}
 	}
 	public void removeListener(GeometryUpdateListener listener){
-		_LISTENERS.remove(listener);
+		if(_LISTENERS.remove(listener)&&listener instanceof MeshUpdateListener)DETAILED_LISTENERS--;
+	}
+	
+	public void addChangeSetListener(GeometryChangeSetListener listener){
+		if(!_CHANGESET_LISTENERS.contains(listener)){
+			if(!SNAPSHOT_LIST.isEmpty()){
+				GeometryChangeSet current=new GeometryChangeSet();
+				for(Snapshot sn:SNAPSHOT_LIST)current.add(sn.geom,GeometryState.NEW_GEOMETRY);
+				listener.onChanges(-1,current);
+			}
+			_CHANGESET_LISTENERS.add(listener);
+		}
+	}
+	
+	public void removeChangeSetListener(GeometryChangeSetListener listener){
+		_CHANGESET_LISTENERS.remove(listener);
+	}
+	
+	/**
+	 * Set the spatial index updated with the changes of every update, null to remove it.
+	 * The geometries already tracked are added to the index immediately. 
+	 * While an index is set every geometry is considered processed.
+	 */
+	public void setSpatialIndex(SpatialChangeIndex index){
+		if(SPATIAL_INDEX!=null)SPATIAL_INDEX.clear();
+		SPATIAL_INDEX=index;
+		if(index!=null){
+			index.clear();
+			GeometryChangeSet current=new GeometryChangeSet();
+			for(Snapshot sn:SNAPSHOT_LIST)current.add(sn.geom,GeometryState.NEW_GEOMETRY);
+			index.update(-1,current);
+		}
+	}
+	
+	public SpatialChangeIndex getSpatialIndex(){
+		return SPATIAL_INDEX;
+	}
+	
+	/**
+	 * Receive the metrics of every update. Without metrics listeners nothing is timed.
+	 */
+	public void addMetricsListener(TrackingMetrics listener){
+		if(!_METRICS_LISTENERS.contains(listener))_METRICS_LISTENERS.add(listener);
+	}
+	
+	public void removeMetricsListener(TrackingMetrics listener){
+		_METRICS_LISTENERS.remove(listener);
 	}
 	
 	private boolean onUpdate(float tpf,Geometry g,byte state){
+		return onUpdate(tpf,g,state,null);
+	}
+	
+	private boolean onUpdate(float tpf,Geometry g,byte state,Snapshot snapshot){
+		if(state==GeometryState.NONE)return false;
+		if((state&GeometryState.NEW_GEOMETRY)!=0)METRICS.NEW++;
+		if((state&GeometryState.GEOMETRY_MESH_UPDATED)!=0)METRICS.MESH_UPDATED++;
+		if((state&GeometryState.GEOMETRY_TRANFORM_UPDATED)!=0)METRICS.TRANSFORM_UPDATED++;
+		if((state&GeometryState.GEOMETRY_REMOVED)!=0)METRICS.REMOVED++;
+		long dispatchStart=MEASURE?System.nanoTime():0;
 		boolean p=false;
-		for(GeometryUpdateListener l:_LISTENERS){
-			p|=l.onUpdate(tpf,g,state);
+		if(!_CHANGESET_LISTENERS.isEmpty()||SPATIAL_INDEX!=null){
+			CHANGES.add(g,state);
+			p=true;
+		}
+		MESH_UPDATE.clear();
+		if(snapshot!=null&&DETAILED_LISTENERS>0&&(state&GeometryState.GEOMETRY_MESH_UPDATED)!=0)fillMeshUpdate(snapshot);
+		for(int i=0;i<_LISTENERS.size();i++){
+			GeometryUpdateListener l=_LISTENERS.get(i);
+			if(l instanceof MeshUpdateListener)p|=((MeshUpdateListener)l).onUpdate(tpf,g,state,MESH_UPDATE);
+			else p|=l.onUpdate(tpf,g,state);
 		}
+		if(MEASURE)METRICS.DISPATCH_NANOS+=System.nanoTime()-dispatchStart;
 		return p;
 	}
+	
+	private void fillMeshUpdate(Snapshot snapshot){
+		MeshUpdate mu=MESH_UPDATE;
+		mu.UPDATED=snapshot.updated_mask;
+		mu.REMOVED=snapshot.removed_mask;
+		for(long u=snapshot.updated_mask;u!=0;u&=u-1){
+			int t=Long.numberOfTrailingZeros(u);
+			VertexBuffer b=snapshot.buffers[t];
+			int n=0;
+			if(((snapshot.new_mask|snapshot.flushed_mask|snapshot.missed_mask)&(1L<<t))==0)n=VBTRACKER.getUpdatedRanges(b,mu.RANGES[t]);
+			if(n==0){ // New buffer, unknown ranges or ranges of previous updates lost
+				mu.RANGES[t][0]=0;
+				mu.RANGES[t][1]=b.getNumElements();
+				n=1;
+			}
+			mu.NUM_RANGES[t]=n;
+		}
+	}
 
 
 	@Override
 	protected void cleanup(Application app) {
-		// TODO Auto-generated method stub
-		
+		VBTRACKER.removeListener(this);
+		if(OWN_POOL){
+			POOL.shutdown();
+			POOL=null;
+			OWN_POOL=false;
+		}
 	}
 
 
@@ -0,0 +1,36 @@
+package jme3.ext;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.instancing.InstancedGeometry;
+
+import lombok.Getter;
+
+/**
+ * Debug geometry drawn once per instance of a source InstancedGeometry, with the instance transforms of the source.
+ * The instance data is shared, not copied: moving the instances moves the debug geometry too.
+ * Its material must have instancing enabled, see {@link DebugViewPortAppState.SharedMaterialKey#instanced()}.
+ *
+ * @author Riccardo Balbo
+ */
+public class InstancedDebugGeometry extends InstancedGeometry{
+	private @Getter final InstancedGeometry SOURCE;
+
+	public InstancedDebugGeometry(String name,InstancedGeometry source,Mesh mesh){
+		super(name);
+		SOURCE=source;
+		setMesh(mesh);
+		// The bound of the mesh doesn't cover the instances
+		setCullHint(CullHint.Never);
+	}
+
+	@Override
+	public int getActualNumInstances() {
+		return SOURCE.getActualNumInstances();
+	}
+
+	@Override
+	public VertexBuffer[] getAllInstanceData() {
+		return SOURCE.getAllInstanceData();
+	}
+}
@@ -0,0 +1,414 @@
+package jme3.ext;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+
+/**
+ * Uniform grid that indexes the geometries of a {@link GeometryUpdateDetector} by the cell that contains the center of their world bound
+ * and records the cells that contain geometries changed in the last update.
+ * Set it with {@link GeometryUpdateDetector#setSpatialIndex(SpatialChangeIndex)}: it's updated with the changes of every update,
+ * so updating and querying the changes costs O(changes) and not O(geometries).
+ *
+ * Listeners can subscribe to the changes of a region only. They receive the changes of the geometries in the cells overlapped by the region,
+ * geometries that enter the region, because they moved or because the region moved, are reported as new and the ones that leave it as removed.
+ *
+ * @author Riccardo Balbo
+ */
+public class SpatialChangeIndex{
+
+	public static class Cell{
+		private final long KEY;
+		private final int X,Y,Z;
+		private final List<Geometry> GEOMETRIES=new ArrayList<Geometry>();
+		private final List<Geometry> RO_GEOMETRIES=Collections.unmodifiableList(GEOMETRIES);
+		private long changed_update=-1;
+
+		private Cell(long key,int x,int y,int z){
+			KEY=key;
+			X=x;
+			Y=y;
+			Z=z;
+		}
+
+		public int getX(){
+			return X;
+		}
+
+		public int getY(){
+			return Y;
+		}
+
+		public int getZ(){
+			return Z;
+		}
+
+		/**
+		 * @return the geometries in this cell, read only
+		 */
+		public List<Geometry> getGeometries(){
+			return RO_GEOMETRIES;
+		}
+	}
+
+	private static class Entry{
+		public Geometry geom;
+		public Cell cell;
+		public int index=-1;
+		// Update flags collected from the change set, the entry is in UPDATED while they are not NONE
+		public byte state=GeometryState.NONE;
+	}
+
+	/**
+	 * A listener and the region it receives the changes of, created by {@link SpatialChangeIndex#subscribe(GeometryUpdateListener)}
+	 */
+	public class Subscription{
+		private final GeometryUpdateListener LISTENER;
+		private boolean empty=true;
+		private int minX,minY,minZ,maxX,maxY,maxZ;
+		// The previous region while the region is moved, reused
+		private Subscription old;
+
+		private Subscription(GeometryUpdateListener listener){
+			LISTENER=listener;
+		}
+
+		public GeometryUpdateListener getListener(){
+			return LISTENER;
+		}
+
+		/**
+		 * Set the region to the cells overlapped by the box.
+		 * The listener is called immediately for the geometries that enter or leave the region.
+		 */
+		public void setRegion(BoundingBox box){
+			Vector3f c=box.getCenter();
+			setRegion(c.x-box.getXExtent(),c.y-box.getYExtent(),c.z-box.getZExtent(),c.x+box.getXExtent(),c.y+box.getYExtent(),c.z+box.getZExtent());
+		}
+
+		/**
+		 * Set the region to the cells overlapped by the cube of side 2*radius centered in center.
+		 * The listener is called immediately for the geometries that enter or leave the region.
+		 */
+		public void setRegion(Vector3f center,float radius){
+			setRegion(center.x-radius,center.y-radius,center.z-radius,center.x+radius,center.y+radius,center.z+radius);
+		}
+
+		private void setRegion(float x0,float y0,float z0,float x1,float y1,float z1){
+			int nminX=cell(x0),nminY=cell(y0),nminZ=cell(z0);
+			int nmaxX=cell(x1),nmaxY=cell(y1),nmaxZ=cell(z1);
+			if(!empty&&nminX==minX&&nminY==minY&&nminZ==minZ&&nmaxX==maxX&&nmaxY==maxY&&nmaxZ==maxZ)return;
+			Subscription old=saveRegion();
+			minX=nminX;
+			minY=nminY;
+			minZ=nminZ;
+			maxX=nmaxX;
+			maxY=nmaxY;
+			maxZ=nmaxZ;
+			empty=false;
+			moved(this,old);
+		}
+
+		/**
+		 * Remove the region: the listener doesn't receive any change until a new region is set.
+		 * The geometries in the old region are reported as removed.
+		 */
+		public void clearRegion(){
+			if(empty)return;
+			Subscription old=saveRegion();
+			empty=true;
+			moved(this,old);
+		}
+
+		public boolean contains(Cell c){
+			return !empty&&c.X>=minX&&c.X<=maxX&&c.Y>=minY&&c.Y<=maxY&&c.Z>=minZ&&c.Z<=maxZ;
+		}
+
+		private Subscription saveRegion(){
+			if(old==null)old=new Subscription(null);
+			old.set(this);
+			return old;
+		}
+
+		private void set(Subscription s){
+			empty=s.empty;
+			minX=s.minX;
+			minY=s.minY;
+			minZ=s.minZ;
+			maxX=s.maxX;
+			maxY=s.maxY;
+			maxZ=s.maxZ;
+		}
+
+		private long volume(){
+			if(empty)return 0;
+			return (long)(maxX-minX+1)*(maxY-minY+1)*(maxZ-minZ+1);
+		}
+	}
+
+	private final float CELL_SIZE;
+	private final Map<Long,Cell> CELLS=new HashMap<Long,Cell>();
+	private final Map<Geometry,Entry> ENTRIES=new IdentityHashMap<Geometry,Entry>();
+	private final List<Cell> CHANGED=new ArrayList<Cell>();
+	private final List<Cell> RO_CHANGED=Collections.unmodifiableList(CHANGED);
+	private final List<Subscription> SUBSCRIPTIONS=new ArrayList<Subscription>();
+	private final List<Entry> UPDATED=new ArrayList<Entry>();
+	private long UPDATE=0;
+	// Created by a debug appstate for its region, not by the application
+	boolean DEBUG_STATES_OWNED;
+	private float TPF;
+
+	public SpatialChangeIndex(float cellSize){
+		if(cellSize<=0)throw new IllegalArgumentException("Cell size must be greater than 0");
+		CELL_SIZE=cellSize;
+	}
+
+	public float getCellSize(){
+		return CELL_SIZE;
+	}
+
+	private int cell(float v){
+		return (int)Math.floor(v/CELL_SIZE);
+	}
+
+	private static long key(int x,int y,int z){
+		return ((x&0x1FFFFFL)<<42)|((y&0x1FFFFFL)<<21)|(z&0x1FFFFFL);
+	}
+
+	private Cell getOrCreateCell(Geometry g){
+		BoundingVolume bv=g.getWorldBound();
+		Vector3f c=bv!=null?bv.getCenter():g.getWorldTranslation();
+		int x=cell(c.x),y=cell(c.y),z=cell(c.z);
+		long k=key(x,y,z);
+		Cell cell=CELLS.get(k);
+		if(cell==null){
+			cell=new Cell(k,x,y,z);
+			CELLS.put(k,cell);
+		}
+		return cell;
+	}
+
+	/**
+	 * Subscribe a listener to the changes of a region. Until the region is set with {@link Subscription#setRegion(BoundingBox)} it receives nothing.
+	 */
+	public Subscription subscribe(GeometryUpdateListener listener){
+		Subscription s=new Subscription(listener);
+		SUBSCRIPTIONS.add(s);
+		return s;
+	}
+
+	/**
+	 * Stop sending the changes to the subscription, nothing is reported for the geometries in its region.
+	 */
+	public void unsubscribe(Subscription s){
+		SUBSCRIPTIONS.remove(s);
+	}
+
+	public int getSubscriptionCount(){
+		return SUBSCRIPTIONS.size();
+	}
+
+	/**
+	 * @return the cells that contain geometries added, changed or removed in the last update, read only
+	 */
+	public List<Cell> getChangedCells(){
+		return RO_CHANGED;
+	}
+
+	/**
+	 * @return true if a geometry in the cells overlapped by the box has been added, changed or removed in the last update. O(changed cells)
+	 */
+	public boolean isChanged(BoundingBox box){
+		Vector3f c=box.getCenter();
+		int x0=cell(c.x-box.getXExtent()),y0=cell(c.y-box.getYExtent()),z0=cell(c.z-box.getZExtent());
+		int x1=cell(c.x+box.getXExtent()),y1=cell(c.y+box.getYExtent()),z1=cell(c.z+box.getZExtent());
+		for(int i=0;i<CHANGED.size();i++){
+			Cell cell=CHANGED.get(i);
+			if(cell.X>=x0&&cell.X<=x1&&cell.Y>=y0&&cell.Y<=y1&&cell.Z>=z0&&cell.Z<=z1)return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the cell that contains the point, null if no geometry is indexed there
+	 */
+	public Cell getCell(Vector3f point){
+		return CELLS.get(key(cell(point.x),cell(point.y),cell(point.z)));
+	}
+
+	/**
+	 * @return the number of indexed geometries
+	 */
+	public int size(){
+		return ENTRIES.size();
+	}
+
+	/**
+	 * @return the number of cells that contain geometries, cells emptied by an update are dropped by the next one
+	 */
+	public int getCellCount(){
+		return CELLS.size();
+	}
+
+	/**
+	 * Apply the changes of an update of the detector and notify the subscriptions.
+	 */
+	void update(float tpf,GeometryChangeSet changes){
+		UPDATE++;
+		TPF=tpf;
+		// Drop the cells emptied by the last update
+		for(int i=0;i<CHANGED.size();i++){
+			Cell c=CHANGED.get(i);
+			if(c.GEOMETRIES.isEmpty()&&CELLS.get(c.KEY)==c)CELLS.remove(c.KEY);
+		}
+		CHANGED.clear();
+
+		GeometryChangeSet.GeometryList list=changes.getRemoved();
+		for(int i=0;i<list.size();i++){
+			Entry e=ENTRIES.remove(list.get(i));
+			if(e==null)continue;
+			Cell from=e.cell;
+			remove(e);
+			changed(from);
+			dispatch(e.geom,from,null,GeometryState.GEOMETRY_REMOVED);
+		}
+		list=changes.getAdded();
+		for(int i=0;i<list.size();i++){
+			Geometry g=list.get(i);
+			if(ENTRIES.containsKey(g))continue;
+			Entry e=new Entry();
+			e.geom=g;
+			ENTRIES.put(g,e);
+			Cell to=getOrCreateCell(g);
+			insert(e,to);
+			changed(to);
+			dispatch(g,null,to,GeometryState.NEW_GEOMETRY);
+		}
+		// A geometry can be in both the lists, it's relocated and dispatched once with both the flags
+		collect(changes.getTransformUpdated(),GeometryState.GEOMETRY_TRANFORM_UPDATED);
+		collect(changes.getMeshUpdated(),GeometryState.GEOMETRY_MESH_UPDATED);
+		for(int i=0;i<UPDATED.size();i++){
+			Entry e=UPDATED.get(i);
+			byte state=e.state;
+			e.state=GeometryState.NONE;
+			relocate(e,state);
+		}
+		UPDATED.clear();
+	}
+
+	private void collect(GeometryChangeSet.GeometryList list,byte state){
+		for(int i=0;i<list.size();i++){
+			Entry e=ENTRIES.get(list.get(i));
+			if(e==null)continue;
+			if(e.state==GeometryState.NONE)UPDATED.add(e);
+			e.state|=state;
+		}
+	}
+
+	/**
+	 * Forget every geometry, nothing is reported to the subscriptions
+	 */
+	void clear(){
+		for(Cell c:CELLS.values())c.GEOMETRIES.clear();
+		CELLS.clear();
+		ENTRIES.clear();
+		CHANGED.clear();
+	}
+
+	private void relocate(Entry e,byte state){
+		Geometry g=e.geom;
+		Cell from=e.cell;
+		Cell to=getOrCreateCell(g);
+		if(to!=from){
+			remove(e);
+			insert(e,to);
+			changed(from);
+		}
+		changed(to);
+		dispatch(g,from,to,state);
+	}
+
+	private void insert(Entry e,Cell c){
+		e.cell=c;
+		e.index=c.GEOMETRIES.size();
+		c.GEOMETRIES.add(e.geom);
+	}
+
+	private void remove(Entry e){
+		List<Geometry> geoms=e.cell.GEOMETRIES;
+		Geometry moved=geoms.remove(geoms.size()-1);
+		if(moved!=e.geom){
+			geoms.set(e.index,moved);
+			ENTRIES.get(moved).index=e.index;
+		}
+		e.cell=null;
+		e.index=-1;
+	}
+
+	private void changed(Cell c){
+		if(c.changed_update==UPDATE)return;
+		c.changed_update=UPDATE;
+		CHANGED.add(c);
+	}
+
+	private void dispatch(Geometry g,Cell from,Cell to,byte state){
+		for(int i=0;i<SUBSCRIPTIONS.size();i++){
+			Subscription s=SUBSCRIPTIONS.get(i);
+			boolean wasIn=from!=null&&s.contains(from);
+			boolean isIn=to!=null&&s.contains(to);
+			if(wasIn&&isIn)s.LISTENER.onUpdate(TPF,g,state);
+			else if(wasIn)s.LISTENER.onUpdate(TPF,g,GeometryState.GEOMETRY_REMOVED);
+			else if(isIn)s.LISTENER.onUpdate(TPF,g,GeometryState.NEW_GEOMETRY);
+		}
+	}
+
+	/**
+	 * Report the geometries that left or entered the region of a subscription.
+	 * Visits the cells of the two regions or, when there are less, the populated cells.
+	 */
+	private void moved(Subscription now,Subscription old){
+		if(old.volume()+now.volume()<=CELLS.size()){
+			report(now,old,now,GeometryState.GEOMETRY_REMOVED);
+			report(now,now,old,GeometryState.NEW_GEOMETRY);
+		}else{
+			for(Cell c:CELLS.values()){
+				if(old.contains(c)&&!now.contains(c))report(now,c,GeometryState.GEOMETRY_REMOVED);
+			}
+			for(Cell c:CELLS.values()){
+				if(now.contains(c)&&!old.contains(c))report(now,c,GeometryState.NEW_GEOMETRY);
+			}
+		}
+	}
+
+	/**
+	 * Report to s the geometries in the cells of region and not of exclude
+	 */
+	private void report(Subscription s,Subscription region,Subscription exclude,byte state){
+		if(region.empty)return;
+		for(int x=region.minX;x<=region.maxX;x++){
+			for(int y=region.minY;y<=region.maxY;y++){
+				for(int z=region.minZ;z<=region.maxZ;z++){
+					Cell c=CELLS.get(key(x,y,z));
+					if(c!=null&&!exclude.contains(c))report(s,c,state);
+				}
+			}
+		}
+	}
+
+	private void report(Subscription s,Cell c,byte state){
+		List<Geometry> geoms=c.GEOMETRIES;
+		for(int i=0;i<geoms.size();i++)s.LISTENER.onUpdate(TPF,geoms.get(i),state);
+	}
+}
@@ -0,0 +1,15 @@
+package jme3.ext;
+
+
+/**
+ * Receives the metrics of the tracking subsystem: once per update from each {@link GeometryUpdateDetector} 
+ * and once per frame, after postRender, from the {@link VertexBufferUpdateTracker}.
+ * Called on the render thread, the metrics objects are reused: copy the values that must be kept.
+ *
+ * @author Riccardo Balbo
+ */
+public interface TrackingMetrics{
+	public void onDetectorMetrics(GeometryUpdateDetector detector,GeometryUpdateDetector.Metrics metrics);
+
+	public void onTrackerMetrics(VertexBufferUpdateTracker tracker,VertexBufferUpdateTracker.Metrics metrics);
+}
@@ -0,0 +1,167 @@
+package jme3.ext;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracing of the hot paths of the tracking subsystem.
+ * 
+ * Calls are guarded by {@link #ENABLED}, that is static final: when the tracing is off the JIT removes them.
+ * It's enabled by starting the JVM with -Djme3.ext.trace=true, the ring size (default 65536 events) is set with -Djme3.ext.trace.size=n.
+ * 
+ * Events are stored as numbers in a ring buffer, nothing is formatted or allocated when they are recorded,
+ * subjects are identified by their identity hash so they are not kept alive by the trace.
+ * Use {@link #dump(PrintStream)} or {@link #getEvents()} to read the last events.
+ * 
+ * <pre>
+ * if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_ID,vb,from,to);
+ * </pre>
+ * 
+ * @author Riccardo Balbo
+ */
+public final class TrackingTrace{
+	public static final boolean ENABLED=Boolean.getBoolean("jme3.ext.trace");
+
+	/**
+	 * Traced events and the meaning of their two values
+	 */
+	public static enum Event{
+		/** A buffer is tracked. a: tracking mode */
+		TRACK_START,
+		/** A buffer is not tracked anymore */
+		TRACK_STOP,
+		/** Buffer id changed. a: old id, b: new id */
+		UPDATE_ID,
+		/** Buffer uploaded. */
+		UPDATE_GPU,
+		/** Buffer data changed. a: number of chunks changed */
+		UPDATE_CPU,
+		/** Buffer data replaced. a: new limit */
+		UPDATE_CPU_DATA,
+		/** Buffer data removed */
+		UPDATE_CPU_REMOVED,
+		/** Buffer type changed. a: old Type ordinal, b: new Type ordinal */
+		UPDATE_TYPE,
+		/** Buffer usage changed. a: old Usage ordinal, b: new Usage ordinal */
+		UPDATE_USAGE,
+		/** Geometry snapshot created */
+		SNAPSHOT,
+		/** Geometry removed */
+		REMOVED,
+		/** Geometry world transform changed */
+		TRANSFORM,
+		/** Buffer added to or replaced in a geometry. a: Type ordinal */
+		BUFFER_ADDED,
+		/** Buffer of a geometry updated. a: Type ordinal, b: new version */
+		BUFFER_UPDATED,
+		/** Buffer removed from a geometry. a: Type ordinal */
+		BUFFER_REMOVED
+	}
+
+	private static final Event EVENTS[]=Event.values();
+
+	/**
+	 * A recorded event, created only when the trace is read
+	 */
+	public static class Record{
+		public final long sequence;
+		public final long time;
+		public final Event event;
+		public final int subject;
+		public final long a,b;
+
+		public Record(long sequence,long time,Event event,int subject,long a,long b){
+			this.sequence=sequence;
+			this.time=time;
+			this.event=event;
+			this.subject=subject;
+			this.a=a;
+			this.b=b;
+		}
+
+		@Override
+		public String toString(){
+			return sequence+" "+time+" "+event+" "+Integer.toHexString(subject)+" "+a+" "+b;
+		}
+	}
+
+	private static final int SIZE;
+	static{
+		int n=1;
+		int size=Integer.getInteger("jme3.ext.trace.size",65536);
+		while(n<size)n<<=1;
+		SIZE=n;
+	}
+	private static final int MASK=SIZE-1;
+	// Allocated only when the trace is used
+	private static long TIMES[];
+	private static byte TYPES[];
+	private static int SUBJECTS[];
+	private static long AS[],BS[];
+	private static long NEXT=0;
+
+	private TrackingTrace(){}
+
+	/**
+	 * Record an event. Thread safe, doesn't allocate after the first call.
+	 */
+	public static synchronized void record(Event event,Object subject,long a,long b){
+		if(TIMES==null){
+			TIMES=new long[SIZE];
+			TYPES=new byte[SIZE];
+			SUBJECTS=new int[SIZE];
+			AS=new long[SIZE];
+			BS=new long[SIZE];
+		}
+		int i=(int)(NEXT++&MASK);
+		TIMES[i]=System.nanoTime();
+		TYPES[i]=(byte)event.ordinal();
+		SUBJECTS[i]=System.identityHashCode(subject);
+		AS[i]=a;
+		BS[i]=b;
+	}
+
+	public static void record(Event event,Object subject){
+		record(event,subject,0,0);
+	}
+
+	/**
+	 * @return the events still in the ring, the oldest first
+	 */
+	public static synchronized List<Record> getEvents(){
+		long first=Math.max(0,NEXT-SIZE);
+		List<Record> out=new ArrayList<Record>((int)(NEXT-first));
+		for(long s=first;s<NEXT;s++){
+			int i=(int)(s&MASK);
+			out.add(new Record(s,TIMES[i],EVENTS[TYPES[i]],SUBJECTS[i],AS[i],BS[i]));
+		}
+		return out;
+	}
+
+	/**
+	 * Print the events still in the ring, the oldest first, one per line: sequence, nanotime, event, subject identity hash, a, b
+	 */
+	public static void dump(PrintStream out){
+		for(Record r:getEvents())out.println(r);
+	}
+
+	/**
+	 * @return the maximum number of events kept in the ring
+	 */
+	public static int getCapacity(){
+		return SIZE;
+	}
+
+	/**
+	 * @return the number of events recorded since the start or the last clear, including the overwritten ones.
+	 */
+	public static synchronized long getRecorded(){
+		return NEXT;
+	}
+
+	public static synchronized void clear(){
+		NEXT=0;
+	}
+}
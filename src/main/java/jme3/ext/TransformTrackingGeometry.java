@@ -0,0 +1,38 @@
+package jme3.ext;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+
+import lombok.Getter;
+
+/**
+ * Geometry that stamps itself with a revision number every time its world transform is recomputed.
+ *
+ * Used by {@link GeometryUpdateDetector} to skip the transform comparison of geometries that didn't move.
+ *
+ * @author Riccardo Balbo
+ */
+public class TransformTrackingGeometry extends Geometry{
+	/**
+	 * Incremented every time the world transform is refreshed
+	 */
+	private @Getter long TRANSFORM_REVISION=0;
+
+	public TransformTrackingGeometry(){
+		super();
+	}
+
+	public TransformTrackingGeometry(String name){
+		super(name);
+	}
+
+	public TransformTrackingGeometry(String name,Mesh mesh){
+		super(name,mesh);
+	}
+
+	@Override
+	protected void updateWorldTransforms() {
+		super.updateWorldTransforms();
+		TRANSFORM_REVISION++;
+	}
+}
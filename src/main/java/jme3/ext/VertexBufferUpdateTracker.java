@@ -2,11 +2,14 @@ package jme3.ext;
 
 
 import java.nio.Buffer;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.WeakHashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.jme3.app.Application;
 import com.jme3.renderer.RenderManager;
@@ -16,6 +19,11 @@ import com.jme3.scene.VertexBuffer.Usage;
 /**
  * AppState for tracking VertexBuffers modifications
  * 
+ * The CPU tracking doesn't keep a copy of the buffer, it splits the data in chunks of a fixed number of elements
+ * and keeps an hash for each one of them, the chunks whose hash changed are reported by {@link #getUpdatedRanges(VertexBuffer,int[])}.
+ * 
+ * The cost of each frame is reported to the {@link TrackingMetrics} listeners, if any, the single updates are traced by {@link TrackingTrace}.
+ * 
  * @author Riccardo Balbo
  */
 public class VertexBufferUpdateTracker extends SharedBaseAppState{
@@ -40,24 +48,137 @@ public class VertexBufferUpdateTracker extends SharedBaseAppState{
 		public static final  byte ALL         =      	0b11111;	
 	}
 	
-	private static class BufferState{
-		public VertexBuffer cpuState;
+	public static interface VertexBufferUpdateListener{
+		public void onUpdate(VertexBuffer vb);
+	}
+	
+	private static final int NUM_MODES=5;
+	
+	/**
+	 * Counters of the last frame, reported to the {@link TrackingMetrics} listeners.
+	 * It's reused by the tracker, copy it with {@link #set(Metrics)} to keep the values.
+	 */
+	public static class Metrics{
+		private int TRACKED;
+		private final int TRACKED_BY_MODE[]=new int[NUM_MODES];
+		private final int UPDATES_BY_MODE[]=new int[NUM_MODES];
+		private long RENDER_NANOS;
+		private long POST_RENDER_NANOS;
+		private long CPU_BYTES;
+		
+		private static int index(int mode){
+			if(Integer.bitCount(mode)!=1||mode>TrackingMode.ALL)throw new IllegalArgumentException("Not a single TrackingMode: "+mode);
+			return Integer.numberOfTrailingZeros(mode);
+		}
+
+		public int getTrackedBuffers(){
+			return TRACKED;
+		}
+
+		/**
+		 * @param mode a single {@link TrackingMode}
+		 * @return number of buffers tracked with this mode
+		 */
+		public int getTrackedBuffers(int mode){
+			return TRACKED_BY_MODE[index(mode)];
+		}
+
+		/**
+		 * @param mode a single {@link TrackingMode}
+		 * @return number of updates detected by this mode
+		 */
+		public int getUpdates(int mode){
+			return UPDATES_BY_MODE[index(mode)];
+		}
+
+		public long getRenderNanos(){
+			return RENDER_NANOS;
+		}
+
+		public long getPostRenderNanos(){
+			return POST_RENDER_NANOS;
+		}
+
+		/**
+		 * @return bytes of the chunk hashes kept by the CPU tracking
+		 */
+		public long getCPUSnapshotBytes(){
+			return CPU_BYTES;
+		}
+
+		public void set(Metrics m){
+			TRACKED=m.TRACKED;
+			System.arraycopy(m.TRACKED_BY_MODE,0,TRACKED_BY_MODE,0,NUM_MODES);
+			System.arraycopy(m.UPDATES_BY_MODE,0,UPDATES_BY_MODE,0,NUM_MODES);
+			RENDER_NANOS=m.RENDER_NANOS;
+			POST_RENDER_NANOS=m.POST_RENDER_NANOS;
+			CPU_BYTES=m.CPU_BYTES;
+		}
+
+		public void clear(){
+			TRACKED=0;
+			Arrays.fill(TRACKED_BY_MODE,0);
+			Arrays.fill(UPDATES_BY_MODE,0);
+			RENDER_NANOS=0;
+			POST_RENDER_NANOS=0;
+			CPU_BYTES=0;
+		}
+	}
+	
+	/**
+	 * Tracking settings and last known state of a buffer
+	 */
+	private static class TrackingUnit extends WeakIdentityTable.Entry<VertexBuffer>{
+		public byte mode;
+		public int trackedBy;
+		/**
+		 * Value of the global version counter when the last update of this buffer has been detected
+		 */
+		public long version;
+		/**
+		 * Number of updates detected on this buffer
+		 */
+		public long updates;
+		
+		/**
+		 * CPU tracking: hashed data buffer, its size, the hash of each chunk and a bitset of the chunks changed in the last update.
+		 */
+		public Buffer cpuData;
+		public int cpuLimit;
+		public int cpuComponents;
+		public int cpuChunkElements;
+		public long cpuHashes[];
+		public long cpuUpdatedChunks[];
+		public int cpuNextChunk;
+		/**
+		 * Version of the update described by cpuUpdatedChunks
+		 */
+		public long cpuRangesVersion=-1;
+		
 		public boolean gpuState;
 		public Type type;
 		public Usage usage;	
-		public int id=-2;
-	}	
-	
-	private static class TrackingUnit{
-		public Byte mode;
-		public Integer trackedBy;
+		public int id;
+		
+		public TrackingUnit(VertexBuffer vb,WeakIdentityTable<VertexBuffer,TrackingUnit> table){
+			super(vb,table);
+			// Start from the current state, so the first frame doesn't report the buffer as updated
+			type=vb.getBufferType();
+			usage=vb.getUsage();
+			id=vb.getId();
+		}
 	}
 	
-	private Map<VertexBuffer,TrackingUnit> trackedBuffers=new WeakHashMap<VertexBuffer,TrackingUnit>();
-	private Map<VertexBuffer,BufferState> bufferState=new WeakHashMap<VertexBuffer,BufferState>();
-	private Map<VertexBuffer,Long> buffersUpdateTimestamp=new WeakHashMap<VertexBuffer,Long>();
-	private static final Logger log=Logger.getLogger(AbstractGeometryDebuggerAppState.class.getName());
-	private static final Level logLevel=Level.FINEST;
+	private final WeakIdentityTable<VertexBuffer,TrackingUnit> trackedBuffers=new WeakIdentityTable<VertexBuffer,TrackingUnit>();
+	/**
+	 * Global version counter, incremented every time an update is detected on any buffer
+	 */
+	private long VERSION=0;
+	private final List<VertexBufferUpdateListener> _LISTENERS=new ArrayList<VertexBufferUpdateListener>();
+	private final List<TrackingMetrics> _METRICS_LISTENERS=new ArrayList<TrackingMetrics>();
+	private final Metrics METRICS=new Metrics();
+	private int CPU_CHUNK_ELEMENTS=64;
+	private int CPU_SAMPLING=0;
 	
 
 	public byte getTrackingStatus(VertexBuffer buffer){
@@ -69,123 +190,292 @@ public class VertexBufferUpdateTracker extends SharedBaseAppState{
 	public void add(VertexBuffer buffer, int mode) {
 		TrackingUnit unit=trackedBuffers.get(buffer);
 		if(unit==null){
-			log.log(logLevel,"Start tracking on {0}",buffer);		
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.TRACK_START,buffer,mode,0);
 
-			unit=new TrackingUnit();
+			unit=new TrackingUnit(buffer,trackedBuffers);
 			unit.mode=(byte)mode;
 			unit.trackedBy=1;
+			trackedBuffers.add(unit);
+		}else{
 			unit.mode=(byte)(unit.mode|mode);
-			trackedBuffers.put(buffer,unit);
-		}else unit.trackedBy++;
+			unit.trackedBy++;
+		}
 	}
 	
 	public void remove(VertexBuffer buffer){
 		TrackingUnit unit=trackedBuffers.get(buffer);
 		if(unit==null)return;		
 		unit.trackedBy--;		
-		if(unit.trackedBy==null)trackedBuffers.remove(buffer);
+		if(unit.trackedBy<=0){
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.TRACK_STOP,buffer);
+			trackedBuffers.remove(unit);
+		}
+	}
+	
+	/**
+	 * Set the number of elements hashed together by the CPU tracking.
+	 * Smaller chunks give finer ranges but use more memory.
+	 */
+	public void setCPUChunkSize(int elements){
+		if(elements<1)throw new IllegalArgumentException("Chunk size must be at least 1 element");
+		CPU_CHUNK_ELEMENTS=elements;
+	}
+
+	public int getCPUChunkSize(){
+		return CPU_CHUNK_ELEMENTS;
+	}
+	
+	/**
+	 * Limit the number of chunks of each buffer checked by the CPU tracking every frame. 
+	 * The chunks are checked in round robin, so updates are detected with a delay of up to chunks/n frames.
+	 * @param chunksPerFrame the number of chunks to check, 0 to check the whole buffer every frame (default)
+	 */
+	public void setCPUSampling(int chunksPerFrame){
+		CPU_SAMPLING=Math.max(0,chunksPerFrame);
+	}
+
+	public int getCPUSampling(){
+		return CPU_SAMPLING;
+	}
+	
+	/**
+	 * @return the current value of the global version counter. 
+	 */
+	public long getVersion(){
+		return VERSION;
+	}
+	
+	/**
+	 * @return the version of the last detected update of this buffer, 0 if no update has been detected or the buffer is not tracked.
+	 */
+	public long getVersion(VertexBuffer vb){
+		TrackingUnit unit=trackedBuffers.get(vb);
+		return unit==null?0:unit.version;
+	}
+	
+	/**
+	 * @return the number of updates detected on this buffer, 0 if the buffer is not tracked. 
+	 * The ranges of {@link #getUpdatedRanges(VertexBuffer,int[])} describe only the last one: 
+	 * callers that skipped some updates must consider the whole buffer changed.
+	 */
+	public long getUpdateCount(VertexBuffer vb){
+		TrackingUnit unit=trackedBuffers.get(vb);
+		return unit==null?0:unit.updates;
 	}
 	
+	/**
+	 * @return the version of the last detected update of this buffer, it can be compared only with other versions.
+	 * @deprecated updates are no longer stamped with the clock, use {@link #getVersion(VertexBuffer)}.
+	 */
+	@Deprecated
 	public long getLastUpdateTimestamp(VertexBuffer vb){
-		Long out= buffersUpdateTimestamp.get(vb);
-		return out==null?0:out;
+		return getVersion(vb);
 	}
 	
-	private boolean doIDTracking(VertexBuffer vb){
-		
-		BufferState state=bufferState.get(vb);
-		if(state==null){
-			state=new BufferState();
-			bufferState.put(vb,state);
+	/**
+	 * @return true if an update of this buffer has been detected after the given version.
+	 */
+	public boolean isUpdatedSince(VertexBuffer vb,long version){
+		return getVersion(vb)>version;
+	}
+	
+	/**
+	 * Get the element ranges changed by the last detected update of this buffer.
+	 * Ranges are known only when the update has been detected by the CPU tracking, otherwise the whole buffer is returned.
+	 * They don't include the changes of the previous updates, see {@link #getUpdateCount(VertexBuffer)}.
+	 * Contiguous changed chunks are merged, if there are more ranges than out can hold the last one is extended to cover the remaining ones.
+	 * @param out array filled with pairs of [first element, last element + 1], an array shorter than 2 can't hold a range and is left untouched
+	 * @return number of ranges written in out, 0 if the buffer has never been updated or out is shorter than 2
+	 */
+	public int getUpdatedRanges(VertexBuffer vb,int out[]){
+		if(out.length<2)return 0;
+		TrackingUnit unit=trackedBuffers.get(vb);
+		if(unit==null||unit.version==0)return 0;
+		if(unit.cpuRangesVersion!=unit.version||unit.cpuUpdatedChunks==null){
+			out[0]=0;
+			out[1]=vb.getNumElements();
+			return 1;
 		}
-		
-		if(vb.getId()!=state.id){
-			log.log(logLevel,"Update detected: ID. From {0} to {1}",new Object[]{state.id,vb.getId()});
+		int n=0;
+		int chunks=unit.cpuHashes.length;
+		int elements=unit.cpuLimit/unit.cpuComponents;
+		long bits[]=unit.cpuUpdatedChunks;
+		for(int c=0;c<chunks;){
+			if((bits[c>>>6]&(1L<<c))==0){
+				c++;
+				continue;
+			}
+			int start=c;
+			while(c<chunks&&(bits[c>>>6]&(1L<<c))!=0)c++;
+			int from=start*unit.cpuChunkElements;
+			int to=Math.min(c*unit.cpuChunkElements,elements);
+			if(n*2+1<out.length){
+				out[n*2]=from;
+				out[n*2+1]=to;
+				n++;
+			}else{
+				out[n*2-1]=to;
+			}
+		}
+		return n;
+	}
+	
+	public void addListener(VertexBufferUpdateListener listener){
+		if(!_LISTENERS.contains(listener))_LISTENERS.add(listener);
+	}
+	
+	public void removeListener(VertexBufferUpdateListener listener){
+		_LISTENERS.remove(listener);
+	}
+	
+	/**
+	 * Receive the metrics of every frame, they are reported after postRender. Without metrics listeners nothing is timed or counted.
+	 */
+	public void addMetricsListener(TrackingMetrics listener){
+		if(!_METRICS_LISTENERS.contains(listener))_METRICS_LISTENERS.add(listener);
+	}
+	
+	public void removeMetricsListener(TrackingMetrics listener){
+		_METRICS_LISTENERS.remove(listener);
+	}
+	
+	private void setUpdated(VertexBuffer vb,TrackingUnit unit){
+		unit.version=++VERSION;
+		unit.updates++;
+		for(int i=0;i<_LISTENERS.size();i++)_LISTENERS.get(i).onUpdate(vb);
+	}
+	
+	private boolean doIDTracking(VertexBuffer vb,TrackingUnit unit){
+		if(vb.getId()!=unit.id){
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_ID,vb,unit.id,vb.getId());
 
-			buffersUpdateTimestamp.put(vb,System.currentTimeMillis());
-			state.id=vb.getId();
+			setUpdated(vb,unit);
+			unit.id=vb.getId();
 			return true;
 		}
 		return false;
 	}
 	
-	private boolean doGPUTracking(VertexBuffer vb,boolean step2){
+	private boolean doGPUTracking(VertexBuffer vb,TrackingUnit unit,boolean step2){
 		if(vb.getUsage()==Usage.CpuOnly)return false;
 		
-		BufferState state=bufferState.get(vb);
-		if(state==null){
-			state=new BufferState();
-			bufferState.put(vb,state);
-		}
-		
 		boolean newstate=vb.getId()==-1||vb.isUpdateNeeded();
 		if(!step2){
-//			log.log(logLevel,"GPU update tracking: step1 {0}",state.gpuState);
-
-			state.gpuState=newstate;			
+			unit.gpuState=newstate;			
 		}else{
-//			log.log(logLevel,"GPU update tracking: step2 {0}",state.gpuState);
-
-			if((state.gpuState&&!newstate)){ // From updateNeeded=true to updateNeeded=false == has been updated.
-				log.log(logLevel,"Update detected: GPU! step1 {0}, step2 {1}",new Object[]{ state.gpuState,newstate});
-				buffersUpdateTimestamp.put(vb,System.currentTimeMillis());
-				state.gpuState=false;
+			if((unit.gpuState&&!newstate)){ // From updateNeeded=true to updateNeeded=false == has been updated.
+				if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_GPU,vb);
+				setUpdated(vb,unit);
+				unit.gpuState=false;
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	private boolean compareVb(VertexBuffer a,VertexBuffer b){
-		if(a.getNumComponents()!=b.getNumComponents())return false;
-		if(a.getNumElements()!=b.getNumElements())return false;
-		Buffer ab=a.getData();
-		Buffer bb=b.getData();
-		if(ab==null^bb==null)return false;
-		return (ab==null&&bb==null)||ab.equals(bb);
+	private static long hashChunk(Buffer data,int from,int to){
+		long h=0xcbf29ce484222325L;
+		if(data instanceof FloatBuffer){
+			FloatBuffer b=(FloatBuffer)data;
+			for(int i=from;i<to;i++)h=(h^Float.floatToRawIntBits(b.get(i)))*0x100000001b3L;
+		}else if(data instanceof ShortBuffer){
+			ShortBuffer b=(ShortBuffer)data;
+			for(int i=from;i<to;i++)h=(h^b.get(i))*0x100000001b3L;
+		}else if(data instanceof IntBuffer){
+			IntBuffer b=(IntBuffer)data;
+			for(int i=from;i<to;i++)h=(h^b.get(i))*0x100000001b3L;
+		}else if(data instanceof ByteBuffer){
+			ByteBuffer b=(ByteBuffer)data;
+			for(int i=from;i<to;i++)h=(h^b.get(i))*0x100000001b3L;
+		}else if(data instanceof DoubleBuffer){
+			DoubleBuffer b=(DoubleBuffer)data;
+			for(int i=from;i<to;i++)h=(h^Double.doubleToRawLongBits(b.get(i)))*0x100000001b3L;
+		}
+		// Final mix
+		h^=h>>>33;
+		h*=0xff51afd7ed558ccdL;
+		h^=h>>>33;
+		return h;
 	}
 	
-	private boolean doCPUTracking(VertexBuffer vb){
-		BufferState state=bufferState.get(vb);
-		if(state==null){
-			state=new BufferState();
-			bufferState.put(vb,state);
+	private boolean doCPUTracking(VertexBuffer vb,TrackingUnit unit){
+		Buffer data=vb.getData();
+		if(data==null){
+			if(unit.cpuData==null)return false;
+			unit.cpuData=null;
+			unit.cpuHashes=null;
+			unit.cpuUpdatedChunks=null;
+			setUpdated(vb,unit);
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_CPU_REMOVED,vb);
+			return true;
 		}
-		if(!compareVb(state.cpuState,vb)){
-			buffersUpdateTimestamp.put(vb,System.currentTimeMillis());
-			state.cpuState=vb.clone();
-			log.log(logLevel,"Update detected: CPU");
-
+		
+		int limit=data.limit();
+		int components=vb.getNumComponents();
+		int chunkSize=CPU_CHUNK_ELEMENTS*components;
+		if(unit.cpuData!=data||unit.cpuLimit!=limit||unit.cpuComponents!=components||unit.cpuChunkElements!=CPU_CHUNK_ELEMENTS){
+			// New or resized data, hash everything.
+			boolean firstHash=unit.cpuData==null&&unit.cpuHashes==null;
+			int chunks=(limit+chunkSize-1)/chunkSize;
+			unit.cpuData=data;
+			unit.cpuLimit=limit;
+			unit.cpuComponents=components;
+			unit.cpuChunkElements=CPU_CHUNK_ELEMENTS;
+			unit.cpuHashes=new long[chunks];
+			unit.cpuUpdatedChunks=new long[(chunks+63)>>>6];
+			unit.cpuNextChunk=0;
+			for(int c=0;c<chunks;c++)unit.cpuHashes[c]=hashChunk(data,c*chunkSize,Math.min(limit,(c+1)*chunkSize));
+			if(firstHash)return false;
+			setUpdated(vb,unit);
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_CPU_DATA,vb,limit,0);
+			return true;
+		}
+		
+		int chunks=unit.cpuHashes.length;
+		int n=CPU_SAMPLING==0?chunks:Math.min(CPU_SAMPLING,chunks);
+		int c=CPU_SAMPLING==0?0:unit.cpuNextChunk;
+		boolean updated=false;
+		for(int i=0;i<n;i++){
+			long h=hashChunk(data,c*chunkSize,Math.min(limit,(c+1)*chunkSize));
+			if(h!=unit.cpuHashes[c]){
+				if(!updated){
+					Arrays.fill(unit.cpuUpdatedChunks,0);
+					updated=true;
+				}
+				unit.cpuHashes[c]=h;
+				unit.cpuUpdatedChunks[c>>>6]|=1L<<c;
+			}
+			if(++c==chunks)c=0;
+		}
+		unit.cpuNextChunk=c;
+		if(updated){
+			unit.cpuRangesVersion=VERSION+1; // Version that is going to be assigned by setUpdated
+			setUpdated(vb,unit);
+			if(TrackingTrace.ENABLED){
+				int changed=0;
+				for(long bits:unit.cpuUpdatedChunks)changed+=Long.bitCount(bits);
+				TrackingTrace.record(TrackingTrace.Event.UPDATE_CPU,vb,changed,0);
+			}
 			return true;
 		}
 		return false;
 	}
 	
-	private boolean doTypeTracking(VertexBuffer vb){
-		BufferState state=bufferState.get(vb);
-		if(state==null){
-			state=new BufferState();
-			bufferState.put(vb,state);
-		}
-		if(state.type!=vb.getBufferType()){
-			buffersUpdateTimestamp.put(vb,System.currentTimeMillis());
-			log.log(logLevel,"Update detected: Type. From {0} to {1}",new Object[]{state.type,vb.getBufferType()});
-			state.type=vb.getBufferType();
+	private boolean doTypeTracking(VertexBuffer vb,TrackingUnit unit){
+		if(unit.type!=vb.getBufferType()){
+			setUpdated(vb,unit);
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_TYPE,vb,unit.type==null?-1:unit.type.ordinal(),vb.getBufferType().ordinal());
+			unit.type=vb.getBufferType();
 			return true;
 		}
 		return false;
 	}
 	
-	private boolean doUsageTracking(VertexBuffer vb){
-		BufferState state=bufferState.get(vb);
-		if(state==null){
-			state=new BufferState();
-			bufferState.put(vb,state);
-		}
-		if(state.usage!=vb.getUsage()){
-			buffersUpdateTimestamp.put(vb,System.currentTimeMillis());
-			log.log(logLevel,"Update detected: Usage. From {0} to {1}",new Object[]{state.usage,vb.getUsage()});
-			state.usage=vb.getUsage();
+	private boolean doUsageTracking(VertexBuffer vb,TrackingUnit unit){
+		if(unit.usage!=vb.getUsage()){
+			setUpdated(vb,unit);
+			if(TrackingTrace.ENABLED)TrackingTrace.record(TrackingTrace.Event.UPDATE_USAGE,vb,unit.usage==null?-1:unit.usage.ordinal(),vb.getUsage().ordinal());
+			unit.usage=vb.getUsage();
 
 			return true;
 		}
@@ -193,32 +483,50 @@ public class VertexBufferUpdateTracker extends SharedBaseAppState{
 	}
 	
 	public void render(RenderManager rm) {
-		if(trackedBuffers.size()==0){
-			log.log(logLevel,"No buffer to track");		
-			return;
-		}
-		log.log(logLevel,"Tracking {0} buffers",bufferState.size());		
-		for(Entry<VertexBuffer,TrackingUnit> bufferEntry:trackedBuffers.entrySet()){
-			VertexBuffer buffer=bufferEntry.getKey();
-			Byte trackingMode=bufferEntry.getValue().mode;
-			if((trackingMode&TrackingMode.GPU)==TrackingMode.GPU)	doGPUTracking(buffer,false);			
+		boolean measure=!_METRICS_LISTENERS.isEmpty();
+		long start=measure?System.nanoTime():0;
+		METRICS.clear();
+		trackedBuffers.expunge();
+		for(int i=0;i<trackedBuffers.size();i++){
+			TrackingUnit unit=trackedBuffers.get(i);
+			VertexBuffer buffer=unit.get();
+			if(buffer==null)continue;
+			byte trackingMode=unit.mode;
+			if((trackingMode&TrackingMode.GPU)==TrackingMode.GPU)	doGPUTracking(buffer,unit,false);			
 		}
+		if(measure)METRICS.RENDER_NANOS=System.nanoTime()-start;
 	}
 
 	public void postRender() {
-		if(trackedBuffers.size()==0){
-			return;		
-		}
+		boolean measure=!_METRICS_LISTENERS.isEmpty();
+		long start=measure?System.nanoTime():0;
+		trackedBuffers.expunge();
 		// Check change of state from updateNeeded=true to updateNeeded=false 		
-		for(Entry<VertexBuffer,TrackingUnit> bufferEntry:trackedBuffers.entrySet()){
-			VertexBuffer buffer=bufferEntry.getKey();
-			Byte trackingMode=bufferEntry.getValue().mode;
-			if((trackingMode&TrackingMode.ID)==TrackingMode.ID)doIDTracking(buffer);			
-			if((trackingMode&TrackingMode.GPU)==TrackingMode.GPU)doGPUTracking(buffer,true);			
-			if((trackingMode&TrackingMode.CPU)==TrackingMode.CPU)doCPUTracking(buffer);
-			if((trackingMode&TrackingMode.USAGE)==TrackingMode.USAGE)doUsageTracking(buffer);
-			if((trackingMode&TrackingMode.TYPE)==TrackingMode.TYPE)doTypeTracking(buffer);			
+		// Update counters are indexed by the bit of the TrackingMode
+		for(int i=0;i<trackedBuffers.size();i++){
+			TrackingUnit unit=trackedBuffers.get(i);
+			VertexBuffer buffer=unit.get();
+			if(buffer==null)continue;
+			byte trackingMode=unit.mode;
+			if((trackingMode&TrackingMode.ID)==TrackingMode.ID&&doIDTracking(buffer,unit))METRICS.UPDATES_BY_MODE[4]++;
+			if((trackingMode&TrackingMode.GPU)==TrackingMode.GPU&&doGPUTracking(buffer,unit,true))METRICS.UPDATES_BY_MODE[1]++;
+			if((trackingMode&TrackingMode.CPU)==TrackingMode.CPU&&doCPUTracking(buffer,unit))METRICS.UPDATES_BY_MODE[0]++;
+			if((trackingMode&TrackingMode.USAGE)==TrackingMode.USAGE&&doUsageTracking(buffer,unit))METRICS.UPDATES_BY_MODE[2]++;
+			if((trackingMode&TrackingMode.TYPE)==TrackingMode.TYPE&&doTypeTracking(buffer,unit))METRICS.UPDATES_BY_MODE[3]++;
+			if(measure)count(unit);
+		}
+		if(measure){
+			METRICS.TRACKED=trackedBuffers.size();
+			METRICS.POST_RENDER_NANOS=System.nanoTime()-start;
+			for(int i=0;i<_METRICS_LISTENERS.size();i++)_METRICS_LISTENERS.get(i).onTrackerMetrics(this,METRICS);
+		}
+	}
+	
+	private void count(TrackingUnit unit){
+		for(int m=0;m<NUM_MODES;m++){
+			if((unit.mode&(1<<m))!=0)METRICS.TRACKED_BY_MODE[m]++;
 		}
+		if(unit.cpuHashes!=null)METRICS.CPU_BYTES+=(unit.cpuHashes.length+unit.cpuUpdatedChunks.length)*8L;
 	}
 
 	
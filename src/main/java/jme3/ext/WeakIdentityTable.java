@@ -0,0 +1,141 @@
+package jme3.ext;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Hash table that maps objects, compared by identity and weakly referenced, to entries that hold their state.
+ * Entries are also packed in an array that can be iterated by index.
+ *
+ * Not thread safe.
+ *
+ * @author Riccardo Balbo
+ */
+public class WeakIdentityTable<K,E extends WeakIdentityTable.Entry<K>>{
+
+	/**
+	 * Base class for the entries, subclasses add the state fields.
+	 */
+	public static class Entry<K> extends WeakReference<K>{
+		private final int HASH;
+		private Entry<K> next;
+		private int index=-1;
+
+		public Entry(K key,WeakIdentityTable<K,?> table){
+			super(key,table.QUEUE);
+			HASH=System.identityHashCode(key);
+		}
+
+		/**
+		 * @return true if the entry is in a table
+		 */
+		public boolean isAlive(){
+			return index!=-1;
+		}
+	}
+
+	private final ReferenceQueue<K> QUEUE=new ReferenceQueue<K>();
+	private Entry<K> buckets[];
+	private Entry<K> entries[];
+	private int size=0;
+
+	public WeakIdentityTable(){
+		this(16);
+	}
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public WeakIdentityTable(int capacity){
+		int n=16;
+		while(n<capacity)n<<=1;
+		buckets=new Entry[n];
+		entries=new Entry[n];
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @return the entry at the given position of the packed array, its key could have been collected already.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(int i){
+		return (E)entries[i];
+	}
+
+	@SuppressWarnings("unchecked")
+	public E get(K key){
+		for(Entry<K> e=buckets[System.identityHashCode(key)&(buckets.length-1)];e!=null;e=e.next){
+			if(e.get()==key)return (E)e;
+		}
+		return null;
+	}
+
+	/**
+	 * Add an entry, the caller must ensure there isn't already an entry with the same key.
+	 */
+	public void add(E e){
+		Entry<K> entry=e;
+		if(entry.index!=-1)throw new IllegalStateException("Entry already added");
+		if(size==entries.length)grow();
+		int b=entry.HASH&(buckets.length-1);
+		entry.next=buckets[b];
+		buckets[b]=entry;
+		entry.index=size;
+		entries[size++]=entry;
+	}
+
+	public void remove(E e){
+		Entry<K> entry=e;
+		if(entry.index==-1)return;
+		int b=entry.HASH&(buckets.length-1);
+		Entry<K> prev=null;
+		for(Entry<K> c=buckets[b];c!=null;c=c.next){
+			if(c==entry){
+				if(prev==null)buckets[b]=c.next;
+				else prev.next=c.next;
+				break;
+			}
+			prev=c;
+		}
+		entry.next=null;
+
+		// Swap with last
+		Entry<K> last=entries[--size];
+		entries[entry.index]=last;
+		last.index=entry.index;
+		entries[size]=null;
+		entry.index=-1;
+	}
+
+	/**
+	 * Remove the entries whose keys have been garbage collected
+	 */
+	@SuppressWarnings("unchecked")
+	public void expunge(){
+		for(Reference<? extends K> r;(r=QUEUE.poll())!=null;){
+			remove((E)r);
+		}
+	}
+
+	public void clear(){
+		while(size>0)remove(get(size-1));
+	}
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private void grow(){
+		Entry<K> nentries[]=new Entry[entries.length<<1];
+		System.arraycopy(entries,0,nentries,0,size);
+		entries=nentries;
+
+		Entry<K> nbuckets[]=new Entry[buckets.length<<1];
+		for(int i=0;i<size;i++){
+			Entry<K> e=entries[i];
+			int b=e.HASH&(nbuckets.length-1);
+			e.next=nbuckets[b];
+			nbuckets[b]=e;
+		}
+		buckets=nbuckets;
+	}
+}
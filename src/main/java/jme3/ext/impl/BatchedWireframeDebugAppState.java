@@ -0,0 +1,251 @@
+package jme3.ext.impl;
+
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.app.Application;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Transform;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Mesh.Mode;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
+
+import jme3.ext.AbstractGeometryDebuggerAppState;
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * AppState that shows wireframes for debugging purposes, merging the wireframes of the geometries
+ * that fall in the same cell of a regular grid in a single line mesh in world space.
+ * Uses one draw call per cell instead of one per geometry, when a geometry changes only its cell is rebuilt.
+ *
+ * @author Riccardo Balbo
+ */
+@Log4j2
+public class BatchedWireframeDebugAppState extends AbstractGeometryDebuggerAppState{
+
+	private static class Batch{
+		public long key;
+		public final List<Geometry> sources=new ArrayList<Geometry>();
+		public Geometry geom;
+		public boolean dirty;
+	}
+
+	private final Map<Long,Batch> batches=new HashMap<Long,Batch>();
+	private final Map<Geometry,Batch> sourceBatches=new HashMap<Geometry,Batch>();
+	private final List<Batch> dirtyBatches=new ArrayList<Batch>();
+	private Material mat;
+	private ColorRGBA color=ColorRGBA.Blue;
+	private SharedMaterialKey matKey;
+	private float cellSize=32f;
+
+	public BatchedWireframeDebugAppState(){
+		super();
+	}
+
+	public BatchedWireframeDebugAppState(Spatial rootNode){
+		super(rootNode);
+	}
+
+	@Override
+	public void initialize(Application app) {
+		super.initialize(app);
+		matKey=SharedMaterialKey.color(color,false);
+		mat=getSharedMaterial(matKey);
+	}
+
+	public void setColor(ColorRGBA c) {
+		color=c;
+		if(isInitialized()){
+			SharedMaterialKey old=matKey;
+			matKey=SharedMaterialKey.color(color,false);
+			mat=getSharedMaterial(matKey);
+			for(Batch b:batches.values()){
+				if(b.geom!=null)b.geom.setMaterial(mat);
+			}
+			if(!old.equals(matKey))releaseSharedMaterial(old);
+		}
+	}
+
+	/**
+	 * Set the size of the grid cells, in world units. Applies to geometries added or moved after the call.
+	 */
+	public void setCellSize(float size){
+		cellSize=size;
+	}
+
+	public float getCellSize(){
+		return cellSize;
+	}
+
+	@Override
+	protected void onDisable(){
+		for(Batch b:batches.values()){
+			if(b.geom!=null)detachSpatial(b.geom);
+		}
+		batches.clear();
+		sourceBatches.clear();
+		dirtyBatches.clear();
+		super.onDisable();
+	}
+
+	@Override
+	public boolean onUpdate(float tpf, Geometry g, byte state) {
+		if(GeometryState.isSet(state,GeometryState.NONE))return false;
+
+		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)){
+			removeSource(g);
+			return false;
+		}
+
+		// Works only with triangle based meshes
+		if(g.getMesh().getMode()!=Mode.Triangles){
+			removeSource(g);
+			return false;
+		}
+
+		long key=cellKey(g);
+		Batch batch=sourceBatches.get(g);
+		if(batch==null||batch.key!=key){
+			removeSource(g);
+			batch=batches.get(key);
+			if(batch==null){
+				batch=new Batch();
+				batch.key=key;
+				batches.put(key,batch);
+			}
+			batch.sources.add(g);
+			sourceBatches.put(g,batch);
+		}
+		markDirty(batch);
+		return true;
+	}
+
+	@Override
+	public void update(float tpf) {
+		super.update(tpf);
+		for(Batch b:dirtyBatches){
+			b.dirty=false;
+			if(b.sources.isEmpty()){
+				if(b.geom!=null)detachSpatial(b.geom);
+				batches.remove(b.key);
+			}else{
+				rebuild(b);
+			}
+		}
+		dirtyBatches.clear();
+	}
+
+	private void removeSource(Geometry g){
+		Batch batch=sourceBatches.remove(g);
+		if(batch==null)return;
+		batch.sources.remove(g);
+		markDirty(batch);
+	}
+
+	private void markDirty(Batch b){
+		if(b.dirty)return;
+		b.dirty=true;
+		dirtyBatches.add(b);
+	}
+
+	private long cellKey(Geometry g){
+		BoundingVolume bv=g.getWorldBound();
+		Vector3f c=bv!=null?bv.getCenter():g.getWorldTranslation();
+		long x=(long)Math.floor(c.x/cellSize);
+		long y=(long)Math.floor(c.y/cellSize);
+		long z=(long)Math.floor(c.z/cellSize);
+		return ((x&0x1FFFFF)<<42)|((y&0x1FFFFF)<<21)|(z&0x1FFFFF);
+	}
+
+	private void rebuild(Batch b){
+		int vertices=0;
+		int lines=0;
+		for(Geometry g:b.sources){
+			Mesh m=g.getMesh();
+			vertices+=m.getVertexCount();
+			lines+=m.getTriangleCount()*3;
+		}
+
+		// The buffers of the previous build are overwritten when they are large enough
+		Mesh mesh=b.geom!=null?b.geom.getMesh():null;
+		FloatBuffer positions=(FloatBuffer)reusable(mesh,Type.Position,vertices*3);
+		if(positions==null)positions=BufferUtils.createFloatBuffer(vertices*3);
+		IntBuffer indices=(IntBuffer)reusable(mesh,Type.Index,lines*2);
+		if(indices==null)indices=BufferUtils.createIntBuffer(lines*2);
+		Vector3f v=new Vector3f();
+		int offset=0;
+		for(Geometry g:b.sources){
+			Mesh m=g.getMesh();
+			VertexBuffer pb=m.getBuffer(Type.Position);
+			if(pb==null||!(pb.getData() instanceof FloatBuffer))continue;
+			FloatBuffer src=(FloatBuffer)pb.getData();
+			Transform t=g.getWorldTransform();
+			int n=m.getVertexCount();
+			for(int i=0;i<n;i++){
+				v.set(src.get(i*3),src.get(i*3+1),src.get(i*3+2));
+				t.transformVector(v,v);
+				positions.put(v.x).put(v.y).put(v.z);
+			}
+
+			IndexBuffer ib=m.getIndexBuffer();
+			int triangles=m.getTriangleCount();
+			for(int i=0;i<triangles;i++){
+				int i0=offset+(ib==null?i*3:ib.get(i*3));
+				int i1=offset+(ib==null?i*3+1:ib.get(i*3+1));
+				int i2=offset+(ib==null?i*3+2:ib.get(i*3+2));
+				indices.put(i0).put(i1).put(i1).put(i2).put(i2).put(i0);
+			}
+			offset+=n;
+		}
+		positions.flip();
+		indices.flip();
+
+		if(b.geom==null){
+			mesh=new Mesh();
+			mesh.setMode(Mode.Lines);
+			b.geom=new Geometry("WireframeBatch~"+Long.toHexString(b.key),mesh);
+			b.geom.setMaterial(mat);
+			attachSpatial(b.geom);
+		}
+		mesh.setBuffer(Type.Position,3,positions);
+		mesh.setBuffer(Type.Index,2,indices);
+		mesh.updateCounts();
+		mesh.updateBound();
+		b.geom.updateModelBound();
+		LOGGER.debug("Rebuilt wireframe batch {} with {} geometries",b.geom.getName(),b.sources.size());
+	}
+
+	/**
+	 * @return the data of the given buffer of the mesh, cleared, if it can hold size elements. Null otherwise.
+	 */
+	private static Buffer reusable(Mesh mesh,Type type,int size){
+		if(mesh==null)return null;
+		VertexBuffer vb=mesh.getBuffer(type);
+		if(vb==null||vb.getData()==null||vb.getData().capacity()<size)return null;
+		Buffer data=vb.getData();
+		data.clear();
+		return data;
+	}
+
+	@Override
+	protected void cleanup(Application app) {
+		super.cleanup(app);
+	}
+
+}
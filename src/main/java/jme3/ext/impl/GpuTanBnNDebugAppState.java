@@ -0,0 +1,135 @@
+package jme3.ext.impl;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jme3.app.Application;
+import com.jme3.material.Material;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Mesh.Mode;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer.Type;
+
+import jme3.ext.AbstractGeometryDebuggerAppState;
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * AppState that shows tangents for debugging purposes, the lines are emitted by a geometry shader
+ * from the Position, Normal, Tangent and Binormal buffers of the source mesh.
+ * No mesh is generated on the CPU, the source mesh is rendered a second time with the TBN material.
+ * The lines are emitted for each corner of each triangle, so the vertices shared by several triangles 
+ * are drawn once per adjacent triangle: overlapping lines, but more vertex work than TanBnNDebugAppState on indexed meshes.
+ *
+ * Requires GLSL 1.50.
+ *
+ * @author Riccardo Balbo
+ */
+@Log4j2
+public class GpuTanBnNDebugAppState extends AbstractGeometryDebuggerAppState{
+	public static final String MATDEF="jme3/ext/MatDefs/TanBnN.j3md";
+
+	private Map<Geometry,Geometry> generatedGeometries=new HashMap<Geometry,Geometry>();
+	// One material for each combination of tangents and binormals availability, 
+	// cloned from the shared ones since the line length is set on them
+	private Material mats[]=new Material[4];
+	private float debugLineLenght=0.1f;
+
+	public GpuTanBnNDebugAppState(){
+		super();
+	}
+
+	public GpuTanBnNDebugAppState(Spatial rootNode){
+		super(rootNode);
+	}
+
+	@Override
+	public void initialize(Application app) {
+		super.initialize(app);
+		loadMaterials();
+	}
+
+	private void loadMaterials(){
+		for(int i=0;i<mats.length;i++){
+			mats[i]=getSharedMaterial(new SharedMaterialKey(MATDEF)
+				.set("HasTangents",(i&1)!=0)
+				.set("HasBinormals",(i&2)!=0)).clone();
+			mats[i].setFloat("LineLength",debugLineLenght);
+		}
+	}
+
+	/**
+	 * Set the length of the lines, it is a material parameter: nothing is regenerated.
+	 */
+	public void setDebugLinesLength(float l) {
+		debugLineLenght=l;
+		if(isInitialized()){
+			for(Material mat:mats)mat.setFloat("LineLength",l);
+		}
+	}
+
+	@Override
+	protected void onDisable(){
+		for(Geometry g:generatedGeometries.values()){
+			detachSpatial(g);
+		}
+		generatedGeometries.clear();
+		super.onDisable();
+	}
+
+	private Material getMaterial(Mesh mesh){
+		boolean tangents=mesh.getBuffer(Type.Tangent)!=null;
+		boolean binormals=tangents&&mesh.getBuffer(Type.Binormal)!=null;
+		return mats[(tangents?1:0)|(binormals?2:0)];
+	}
+
+	private boolean isTriangleMode(Mode mode){
+		return mode==Mode.Triangles||mode==Mode.TriangleStrip||mode==Mode.TriangleFan;
+	}
+
+	@Override
+	public boolean onUpdate(float tpf, Geometry g, byte state) {
+		if(GeometryState.isSet(state,GeometryState.NONE))return false;
+		Mesh mesh=g.getMesh();
+
+		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)){
+			Geometry generated=generatedGeometries.remove(g);
+			if(generated!=null){
+				detachSpatial(generated);
+			}else{
+				LOGGER.debug("A remove action has been triggered on {}, but there is no generated geometry.",g);
+			}
+			return false;
+		}
+
+		// Works only with triangle based meshes that have normals
+		if(!isTriangleMode(mesh.getMode())||mesh.getBuffer(Type.Normal)==null){
+			Geometry generated=generatedGeometries.remove(g);
+			if(generated!=null)detachSpatial(generated);
+			return false;
+		}
+
+		Geometry generated=generatedGeometries.get(g);
+		if(generated==null){
+			generated=new Geometry(g.getName()+"~GpuTangents",mesh);
+			attachSpatial(generated);
+			generatedGeometries.put(g,generated);
+		}else if(generated.getMesh()!=mesh){
+			generated.setMesh(mesh);
+		}
+		// The mesh is shared with the source, buffer updates are already visible.
+		// Only the material can change if tangents or binormals have been added or removed.
+		generated.setMaterial(getMaterial(mesh));
+		generated.setLocalTransform(g.getWorldTransform());
+		return true;
+	}
+
+	@Override
+	protected void cleanup(Application app) {
+		super.cleanup(app);
+	}
+
+}
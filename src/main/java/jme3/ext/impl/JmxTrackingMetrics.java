@@ -0,0 +1,199 @@
+package jme3.ext.impl;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.TrackingMetrics;
+import jme3.ext.VertexBufferUpdateTracker;
+import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
+
+/**
+ * Exposes the tracking metrics as an MBean of the platform MBean server, under jme3.ext:type=TrackingMetrics,name=...
+ * Register it as metrics listener of the detectors and of the tracker:
+ * <pre>
+ * JmxTrackingMetrics metrics=new JmxTrackingMetrics();
+ * metrics.register("main");
+ * detector.addMetricsListener(metrics);
+ * VertexBufferUpdateTracker.getInstance(app).addMetricsListener(metrics);
+ * </pre>
+ *
+ * @author Riccardo Balbo
+ */
+public class JmxTrackingMetrics implements TrackingMetrics,JmxTrackingMetricsMBean{
+	// Last metrics of each detector, detectors that are collected stop being reported
+	private final Map<GeometryUpdateDetector,GeometryUpdateDetector.Metrics> DETECTORS=new WeakHashMap<GeometryUpdateDetector,GeometryUpdateDetector.Metrics>();
+	private final GeometryUpdateDetector.Metrics DETECTORS_SUM=new GeometryUpdateDetector.Metrics();
+	private final VertexBufferUpdateTracker.Metrics TRACKER=new VertexBufferUpdateTracker.Metrics();
+	private ObjectName NAME;
+
+	/**
+	 * Register this object in the platform MBean server
+	 */
+	public synchronized void register(String name) throws JMException {
+		unregister();
+		ObjectName on=new ObjectName("jme3.ext:type=TrackingMetrics,name="+ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,on);
+		NAME=on;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if(NAME==null)return;
+		MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(NAME))server.unregisterMBean(NAME);
+		NAME=null;
+	}
+
+	public synchronized ObjectName getObjectName(){
+		return NAME;
+	}
+
+	@Override
+	public synchronized void onDetectorMetrics(GeometryUpdateDetector detector, GeometryUpdateDetector.Metrics metrics) {
+		GeometryUpdateDetector.Metrics last=DETECTORS.get(detector);
+		if(last==null){
+			last=new GeometryUpdateDetector.Metrics();
+			DETECTORS.put(detector,last);
+		}
+		last.set(metrics);
+	}
+
+	/**
+	 * Stop reporting the metrics of this detector, to be called when it's no longer listened.
+	 */
+	public synchronized void removeDetector(GeometryUpdateDetector detector){
+		DETECTORS.remove(detector);
+	}
+
+	@Override
+	public synchronized void onTrackerMetrics(VertexBufferUpdateTracker tracker, VertexBufferUpdateTracker.Metrics metrics) {
+		TRACKER.set(metrics);
+	}
+
+	private synchronized GeometryUpdateDetector.Metrics sum(){
+		DETECTORS_SUM.clear();
+		for(GeometryUpdateDetector.Metrics m:DETECTORS.values())DETECTORS_SUM.add(m);
+		return DETECTORS_SUM;
+	}
+
+	@Override
+	public synchronized int getDetectors() {
+		return DETECTORS.size();
+	}
+
+	@Override
+	public synchronized int getGeometriesVisited() {
+		return sum().getGeometriesVisited();
+	}
+
+	@Override
+	public synchronized int getSnapshots() {
+		return sum().getSnapshots();
+	}
+
+	@Override
+	public synchronized int getNewGeometries() {
+		return sum().getNewGeometries();
+	}
+
+	@Override
+	public synchronized int getMeshUpdates() {
+		return sum().getMeshUpdates();
+	}
+
+	@Override
+	public synchronized int getTransformUpdates() {
+		return sum().getTransformUpdates();
+	}
+
+	@Override
+	public synchronized int getRemovedGeometries() {
+		return sum().getRemovedGeometries();
+	}
+
+	@Override
+	public synchronized long getDispatchNanos() {
+		return sum().getDispatchNanos();
+	}
+
+	@Override
+	public synchronized long getUpdateNanos() {
+		return sum().getUpdateNanos();
+	}
+
+	@Override
+	public synchronized int getTrackedBuffers() {
+		return TRACKER.getTrackedBuffers();
+	}
+
+	@Override
+	public synchronized int getTrackedBuffersCPU() {
+		return TRACKER.getTrackedBuffers(TrackingMode.CPU);
+	}
+
+	@Override
+	public synchronized int getTrackedBuffersGPU() {
+		return TRACKER.getTrackedBuffers(TrackingMode.GPU);
+	}
+
+	@Override
+	public synchronized int getTrackedBuffersUsage() {
+		return TRACKER.getTrackedBuffers(TrackingMode.USAGE);
+	}
+
+	@Override
+	public synchronized int getTrackedBuffersType() {
+		return TRACKER.getTrackedBuffers(TrackingMode.TYPE);
+	}
+
+	@Override
+	public synchronized int getTrackedBuffersID() {
+		return TRACKER.getTrackedBuffers(TrackingMode.ID);
+	}
+
+	@Override
+	public synchronized int getUpdatesCPU() {
+		return TRACKER.getUpdates(TrackingMode.CPU);
+	}
+
+	@Override
+	public synchronized int getUpdatesGPU() {
+		return TRACKER.getUpdates(TrackingMode.GPU);
+	}
+
+	@Override
+	public synchronized int getUpdatesUsage() {
+		return TRACKER.getUpdates(TrackingMode.USAGE);
+	}
+
+	@Override
+	public synchronized int getUpdatesType() {
+		return TRACKER.getUpdates(TrackingMode.TYPE);
+	}
+
+	@Override
+	public synchronized int getUpdatesID() {
+		return TRACKER.getUpdates(TrackingMode.ID);
+	}
+
+	@Override
+	public synchronized long getRenderNanos() {
+		return TRACKER.getRenderNanos();
+	}
+
+	@Override
+	public synchronized long getPostRenderNanos() {
+		return TRACKER.getPostRenderNanos();
+	}
+
+	@Override
+	public synchronized long getCPUSnapshotBytes() {
+		return TRACKER.getCPUSnapshotBytes();
+	}
+}
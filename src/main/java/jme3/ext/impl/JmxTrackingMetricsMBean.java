@@ -0,0 +1,56 @@
+package jme3.ext.impl;
+
+
+/**
+ * Attributes exposed by {@link JmxTrackingMetrics}. 
+ * Detector values are the sum of the last update of every reporting detector, tracker values refer to the last frame.
+ *
+ * @author Riccardo Balbo
+ */
+public interface JmxTrackingMetricsMBean{
+	public int getDetectors();
+
+	public int getGeometriesVisited();
+
+	public int getSnapshots();
+
+	public int getNewGeometries();
+
+	public int getMeshUpdates();
+
+	public int getTransformUpdates();
+
+	public int getRemovedGeometries();
+
+	public long getDispatchNanos();
+
+	public long getUpdateNanos();
+
+	public int getTrackedBuffers();
+
+	public int getTrackedBuffersCPU();
+
+	public int getTrackedBuffersGPU();
+
+	public int getTrackedBuffersUsage();
+
+	public int getTrackedBuffersType();
+
+	public int getTrackedBuffersID();
+
+	public int getUpdatesCPU();
+
+	public int getUpdatesGPU();
+
+	public int getUpdatesUsage();
+
+	public int getUpdatesType();
+
+	public int getUpdatesID();
+
+	public long getRenderNanos();
+
+	public long getPostRenderNanos();
+
+	public long getCPUSnapshotBytes();
+}
@@ -1,32 +1,76 @@
 package jme3.ext.impl;
 
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.jme3.app.Application;
-import com.jme3.material.Material;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Mesh.Mode;
 import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.util.BufferUtils;
 import com.jme3.util.TangentBinormalGenerator;
 
 import jme3.ext.AbstractGeometryDebuggerAppState;
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
 import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.GeometryUpdateDetector.MeshUpdate;
+import jme3.ext.GeometryUpdateDetector.MeshUpdateListener;
+import jme3.ext.VertexBufferUpdateTracker;
 import lombok.extern.log4j.Log4j2;
 
 /**
  * AppState that shows tangents for debugging purposes
  * 
+ * The lines are generated once per source mesh and shared by all the geometries that use it, the debug geometries differ only in transform.
+ * They are tracked with the versions of the source buffers and released when the last geometry that uses them goes away.
+ * In incremental mode the lines mesh of each source mesh is allocated once and only the lines of the vertices
+ * whose position, normal, tangent or binormal changed are rewritten, the generated Geometries are reused across updates.
+ * The lines of an InstancedGeometry are drawn instanced.
+ * 
  * @author Riccardo Balbo
  */
 @Log4j2
-public class TanBnNDebugAppState extends AbstractGeometryDebuggerAppState{
+public class TanBnNDebugAppState extends AbstractGeometryDebuggerAppState implements MeshUpdateListener{
+
+	/**
+	 * Lines generated from a source mesh and the geometries that use them
+	 */
+	private static class SharedLines{
+		public final Mesh source;
+		public Mesh lines;
+		/**
+		 * Source buffers and their versions when the lines have been generated or requested
+		 */
+		public final VertexBuffer buffers[]=new VertexBuffer[TBN_BUFFERS.length];
+		public final long versions[]=new long[TBN_BUFFERS.length];
+		/**
+		 * Source geometry whose build is in flight, null if none
+		 */
+		public Geometry builder;
+		public final List<Geometry> users=new ArrayList<Geometry>();
+
+		public SharedLines(Mesh source){
+			this.source=source;
+		}
+	}
 
 	private Map<Geometry,Geometry> generatedGeometries=new HashMap<Geometry,Geometry>();
-	private Material mat;
+	private final Map<Mesh,SharedLines> SHARED=new IdentityHashMap<Mesh,SharedLines>();
+	private final Map<Geometry,SharedLines> USED=new HashMap<Geometry,SharedLines>();
+	private VertexBufferUpdateTracker VBTRACKER;
+	private SharedMaterialKey matKey;
 	private float debugLineLenght=0.1f;
+	private boolean incremental=false;
+	private static final Type TBN_BUFFERS[]={Type.Position,Type.Normal,Type.Tangent,Type.Binormal};
 
 	public TanBnNDebugAppState(){
 		super();
@@ -39,11 +83,40 @@ public class TanBnNDebugAppState extends AbstractGeometryDebuggerAppState{
 	@Override
 	public void initialize(Application app) {
 		super.initialize(app);
-		mat=app.getAssetManager().loadMaterial("Common/Materials/VertexColor.j3m");
+		VBTRACKER=VertexBufferUpdateTracker.getInstance(app);
+		matKey=SharedMaterialKey.vertexColor();
 	}
 
 	public void setDebugLinesLength(float l) {
 		debugLineLenght=l;
+		for(SharedLines sl:SHARED.values()){
+			if(incremental&&sl.lines!=null&&isCompatible(sl.source,sl.lines)){
+				writeLines(sl.source,sl.lines,0,sl.source.getVertexCount());
+				sl.lines.updateBound();
+				setLines(sl,sl.lines);
+			}else if(!sl.users.isEmpty()){
+				// A build in progress has been started with the old length, it's replaced
+				generate(sl,sl.builder!=null?sl.builder:sl.users.get(0),null);
+			}
+		}
+	}
+	
+	/**
+	 * Enable or disable the incremental mode. Applies to the lines generated after the call.
+	 */
+	public void setIncremental(boolean v){
+		incremental=v;
+	}
+	
+	public boolean isIncremental(){
+		return incremental;
+	}
+	
+	/**
+	 * @return the number of lines meshes, one for each source mesh in use
+	 */
+	public int getSharedLinesCount(){
+		return SHARED.size();
 	}
 	
 	@Override
@@ -52,51 +125,285 @@ public class TanBnNDebugAppState extends AbstractGeometryDebuggerAppState{
 			detachSpatial(g);
 		}
 		generatedGeometries.clear();
+		SHARED.clear();
+		USED.clear();
 		super.onDisable();
 	}
 	
 
 	@Override
 	public boolean onUpdate(float tpf, Geometry g, byte state) {
+		return onUpdate(tpf,g,state,null);
+	}
+	
+	@Override
+	public boolean onUpdate(float tpf, Geometry g, byte state, MeshUpdate update) {
 		if(GeometryState.isSet(state,GeometryState.NONE))return false;
+		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)){
+			release(g);
+			return false;
+		}
 
 		Mesh mesh=g.getMesh();
-		
-		
-		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)||GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED)){
+		// Works only with triangle based meshes
+		if(mesh.getMode()!=Mode.Triangles){
+			release(g);
+			return false;
+		}
+
+		SharedLines sl=USED.get(g);
+		if(sl!=null&&sl.source!=mesh){ // The geometry uses another mesh
+			release(g);
+			sl=null;
+		}
+		boolean mesh_updated=GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED);
+		if(sl==null){
+			if(!GeometryState.isSet(state,GeometryState.NEW_GEOMETRY)&&!mesh_updated)return false;
+			acquire(g);
+		}else if(mesh_updated&&!isCurrent(sl)){
+			// The first of the geometries that share the mesh regenerates the lines for all of them
+			generate(sl,g,update);
+		}
+
+		Geometry generated=generatedGeometries.get(g);
+		if(generated!=null)generated.setLocalTransform(g.getWorldTransform());
+		return true;
+	}
+
+	private void acquire(Geometry g){
+		Mesh mesh=g.getMesh();
+		SharedLines sl=SHARED.get(mesh);
+		boolean created=sl==null;
+		if(created){
+			sl=new SharedLines(mesh);
+			SHARED.put(mesh,sl);
+		}
+		sl.users.add(g);
+		USED.put(g,sl);
+		if(created||!isCurrent(sl))generate(sl,g,null);
+		else if(sl.lines!=null)attach(g,sl);
+		// Otherwise the lines are being built and will be attached when ready
+	}
+
+	private void release(Geometry g){
+		Geometry generated=generatedGeometries.remove(g);
+		if(generated!=null)detachSpatial(generated);
+		SharedLines sl=USED.remove(g);
+		if(sl==null)return;
+		sl.users.remove(g);
+		if(sl.users.isEmpty()){
+			SHARED.remove(sl.source);
+			if(sl.builder==g)cancelBuild(g);
+		}else if(sl.builder==g){
+			// Build again for the remaining users
+			cancelBuild(g);
+			generate(sl,sl.users.get(0),null);
+		}
+	}
+
+	/**
+	 * @return true if the lines have been generated, or requested, from the current buffers of the source mesh
+	 */
+	private boolean isCurrent(SharedLines sl){
+		for(int i=0;i<TBN_BUFFERS.length;i++){
+			VertexBuffer vb=sl.source.getBuffer(TBN_BUFFERS[i]);
+			if(vb!=sl.buffers[i])return false;
+			if(vb!=null&&VBTRACKER.getVersion(vb)!=sl.versions[i])return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Generate the lines from the current buffers of the source mesh. In incremental mode the existing lines are rewritten where possible.
+	 * @param requester the geometry that requested the lines, it identifies the build
+	 */
+	private void generate(SharedLines sl,Geometry requester,MeshUpdate update){
+		for(int i=0;i<TBN_BUFFERS.length;i++){
+			VertexBuffer vb=sl.source.getBuffer(TBN_BUFFERS[i]);
+			sl.buffers[i]=vb;
+			sl.versions[i]=vb==null?0:VBTRACKER.getVersion(vb);
+		}
+		if(incremental){
+			if(sl.lines!=null&&isCompatible(sl.source,sl.lines)){
+				updateLines(sl.source,sl.lines,update);
+				setLines(sl,sl.lines);
+			}else{
+				setLines(sl,createLines(sl.source));
+			}
+			return;
+		}
+		// The old lines are kept until the new ones are ready
+		if(sl.builder!=null&&sl.builder!=requester)cancelBuild(sl.builder);
+		sl.builder=requester;
+		final float length=debugLineLenght;
+		build(requester,TBN_BUFFERS,new MeshBuilder(){
+			@Override
+			public Mesh build(Mesh source) {
+				return TangentBinormalGenerator.genTbnLines(source,length);
+			}
+		});
+	}
+
+	@Override
+	protected void onMeshBuilt(Geometry g, Mesh mesh) {
+		SharedLines sl=USED.get(g);
+		if(sl==null||sl.builder!=g)return;
+		sl.builder=null;
+		setLines(sl,mesh);
+	}
+
+	/**
+	 * Use the given lines for all the geometries that share the source mesh, null to remove their debug geometries.
+	 */
+	private void setLines(SharedLines sl,Mesh lines){
+		sl.lines=lines;
+		for(int i=0;i<sl.users.size();i++){
+			Geometry g=sl.users.get(i);
 			Geometry generated=generatedGeometries.get(g);
-			if(generated!=null){
-				detachSpatial(generated);
-				generatedGeometries.remove(g);
+			if(lines==null){
+				if(generated!=null){
+					detachSpatial(generated);
+					generatedGeometries.remove(g);
+				}
+			}else if(generated==null){
+				attach(g,sl);
 			}else{
-				LOGGER.debug("A remove or regen action has been triggered on {0}, but there is no generated geometry.",g);
+				generated.setMesh(lines); // Refreshes the bound also when the lines have been rewritten in place
 			}
 		}
-		
-		if(GeometryState.isSet(state,GeometryState.NEW_GEOMETRY)||GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED)){
-			// Works only with triangle based meshes
-			if(mesh.getMode()!=Mode.Triangles) return false;
+	}
 
-			Geometry generated=new Geometry(g.getName()+"~Tangents",TangentBinormalGenerator.genTbnLines(mesh,debugLineLenght));
-			generated.setMaterial(mat);
-			generated.setLocalTransform(g.getWorldTransform());
+	private void attach(Geometry g,SharedLines sl){
+		Geometry generated=createDebugGeometry(g.getName()+"~Tangents",g,sl.lines,matKey);
+		attachSpatial(generated);
+		generatedGeometries.put(g,generated);
+	}
 
-			attachSpatial(generated);
-			generatedGeometries.put(g,generated);			
-			return true;		
+	/**
+	 * Allocate a lines mesh with the same layout of TangentBinormalGenerator.genTbnLines: 
+	 * for each vertex a white origin and a red tangent, green binormal and blue normal end, 
+	 * or a white origin and a blue normal end when the mesh has no tangents.
+	 */
+	private Mesh createLines(Mesh src){
+		int vertices=src.getVertexCount();
+		boolean tangents=src.getBuffer(Type.Tangent)!=null;
+		int k=tangents?4:2;
 
+		Mesh lines=new Mesh();
+		lines.setMode(Mode.Lines);
+		FloatBuffer colors=BufferUtils.createFloatBuffer(vertices*k*4);
+		for(int i=0;i<vertices;i++){
+			colors.put(1).put(1).put(1).put(1);
+			if(tangents){
+				colors.put(1).put(0).put(0).put(1);
+				colors.put(0).put(1).put(0).put(1);
+			}
+			colors.put(0).put(0).put(1).put(1);
 		}
-		
-		if(GeometryState.isSet(state,GeometryState.GEOMETRY_TRANFORM_UPDATED)){
-			Geometry generated=generatedGeometries.get(g);
-			generated.setLocalTransform(g.getWorldTransform());
+		colors.flip();
+		lines.setBuffer(Type.Color,4,colors);
+		if(tangents){
+			IntBuffer indices=BufferUtils.createIntBuffer(vertices*6);
+			for(int i=0;i<vertices;i++){
+				int o=i*4;
+				indices.put(o).put(o+1).put(o).put(o+2).put(o).put(o+3);
+			}
+			indices.flip();
+			lines.setBuffer(Type.Index,2,indices);
+		}
+		lines.setBuffer(Type.Position,3,BufferUtils.createFloatBuffer(vertices*k*3));
+		writeLines(src,lines,0,vertices);
+		lines.updateBound();
+		return lines;
+	}
+	
+	/**
+	 * @return true if the lines mesh has been generated from a mesh with the same number of vertices and the same tangent availability.
+	 */
+	private boolean isCompatible(Mesh src,Mesh lines){
+		boolean tangents=src.getBuffer(Type.Tangent)!=null;
+		if(tangents!=(lines.getBuffer(Type.Index)!=null))return false;
+		VertexBuffer pos=lines.getBuffer(Type.Position);
+		return pos!=null&&pos.getNumElements()==src.getVertexCount()*(tangents?4:2);
+	}
+	
+	private void updateLines(Mesh src,Mesh lines,MeshUpdate update){
+		boolean full=update==null;
+		// A removed buffer has no ranges, but its lines must be rewritten (eg. binormals computed again from the tangents)
+		for(int i=0;i<TBN_BUFFERS.length&&!full;i++)full=update.isRemoved(TBN_BUFFERS[i]);
+		if(full){
+			writeLines(src,lines,0,src.getVertexCount());
+			lines.updateBound();
+			return;
 		}
+		for(int j=0;j<TBN_BUFFERS.length;j++){
+			Type t=TBN_BUFFERS[j];
+			for(int i=0;i<update.getNumRanges(t);i++){
+				writeLines(src,lines,update.getRangeStart(t,i),update.getRangeEnd(t,i));
+			}
+		}
+		lines.updateBound();
+	}
 
-		return false;
+	/**
+	 * Rewrite in place the lines of the source vertices in [from,to) and flag the position buffer for upload, the bound is not updated.
+	 */
+	private void writeLines(Mesh src,Mesh lines,int from,int to){
+		VertexBuffer pb=src.getBuffer(Type.Position);
+		VertexBuffer nb=src.getBuffer(Type.Normal);
+		if(pb==null||nb==null||from>=to)return;
+		VertexBuffer tb=src.getBuffer(Type.Tangent);
+		VertexBuffer bb=src.getBuffer(Type.Binormal);
+		FloatBuffer pos=(FloatBuffer)pb.getData();
+		FloatBuffer nor=(FloatBuffer)nb.getData();
+		FloatBuffer tan=tb==null?null:(FloatBuffer)tb.getData();
+		FloatBuffer bin=bb==null?null:(FloatBuffer)bb.getData();
+		int tc=tb==null?0:tb.getNumComponents();
+
+		VertexBuffer lb=lines.getBuffer(Type.Position);
+		FloatBuffer out=(FloatBuffer)lb.getData();
+		int k=tan==null?2:4;
+		float l=debugLineLenght;
+		to=Math.min(to,src.getVertexCount());
+		for(int i=from;i<to;i++){
+			float px=pos.get(i*3),py=pos.get(i*3+1),pz=pos.get(i*3+2);
+			float nx=nor.get(i*3),ny=nor.get(i*3+1),nz=nor.get(i*3+2);
+			int o=i*k*3;
+			out.put(o,px).put(o+1,py).put(o+2,pz);
+			if(tan!=null){
+				float tx=tan.get(i*tc),ty=tan.get(i*tc+1),tz=tan.get(i*tc+2);
+				float bx,by,bz;
+				if(bin!=null){
+					bx=bin.get(i*3);
+					by=bin.get(i*3+1);
+					bz=bin.get(i*3+2);
+				}else{ // binormal = normalize(normal x tangent * -w), as in genTbnLines
+					float w=tc==4?tan.get(i*tc+3):1f;
+					bx=-w*(ny*tz-nz*ty);
+					by=-w*(nz*tx-nx*tz);
+					bz=-w*(nx*ty-ny*tx);
+					float len=(float)Math.sqrt(bx*bx+by*by+bz*bz);
+					if(len>0){
+						bx/=len;
+						by/=len;
+						bz/=len;
+					}
+				}
+				out.put(o+3,px+tx*l).put(o+4,py+ty*l).put(o+5,pz+tz*l);
+				out.put(o+6,px+bx*l).put(o+7,py+by*l).put(o+8,pz+bz*l);
+				o+=9;
+			}else{
+				o+=3;
+			}
+			out.put(o,px+nx*l).put(o+1,py+ny*l).put(o+2,pz+nz*l);
+		}
+		lb.setUpdateNeeded();
 	}
 
 	@Override
-	protected void cleanup(Application app) {}
+	protected void cleanup(Application app) {
+		super.cleanup(app);
+	}
 
 
 }
\ No newline at end of file
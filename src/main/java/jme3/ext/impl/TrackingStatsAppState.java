@@ -0,0 +1,125 @@
+package jme3.ext.impl;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.app.Application;
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.BaseAppState;
+import com.jme3.font.BitmapFont;
+import com.jme3.font.BitmapText;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.RenderQueue.Bucket;
+
+import jme3.ext.DebugViewPortAppState;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.VertexBufferUpdateTracker;
+
+/**
+ * AppState that shows the tracking metrics as text in the top left corner of the debug viewport.
+ * The values are the ones exposed by {@link JmxTrackingMetrics}, the text is refreshed every refreshInterval seconds.
+ * If no detector is added, the detector of the root node is used.
+ *
+ * @author Riccardo Balbo
+ */
+public class TrackingStatsAppState extends BaseAppState{
+	private final List<GeometryUpdateDetector> DETECTORS=new ArrayList<GeometryUpdateDetector>();
+	private final JmxTrackingMetrics METRICS=new JmxTrackingMetrics();
+	private DebugViewPortAppState VIEWPORT;
+	private VertexBufferUpdateTracker TRACKER;
+	private BitmapText TEXT;
+	private float refreshInterval=0.5f;
+	private float SINCE_REFRESH;
+
+	public TrackingStatsAppState(GeometryUpdateDetector... detectors){
+		for(GeometryUpdateDetector d:detectors)DETECTORS.add(d);
+	}
+
+	/**
+	 * Show the metrics of this detector too
+	 */
+	public void addDetector(GeometryUpdateDetector detector){
+		if(DETECTORS.contains(detector))return;
+		DETECTORS.add(detector);
+		if(isEnabled())detector.addMetricsListener(METRICS);
+	}
+
+	public void removeDetector(GeometryUpdateDetector detector){
+		if(!DETECTORS.remove(detector))return;
+		detector.removeMetricsListener(METRICS);
+		METRICS.removeDetector(detector);
+	}
+
+	public void setRefreshInterval(float seconds){
+		refreshInterval=seconds;
+	}
+
+	public float getRefreshInterval(){
+		return refreshInterval;
+	}
+
+	/**
+	 * @return the text currently shown
+	 */
+	public String getText(){
+		return TEXT==null?"":TEXT.getText();
+	}
+
+	@Override
+	protected void initialize(Application app) {
+		if(DETECTORS.isEmpty()&&app instanceof SimpleApplication){
+			DETECTORS.add(GeometryUpdateDetector.getInstance((SimpleApplication)app));
+		}
+		VIEWPORT=DebugViewPortAppState.getInstance(app);
+		TRACKER=VertexBufferUpdateTracker.getInstance(app);
+		BitmapFont font=app.getAssetManager().loadFont("Interface/Fonts/Default.fnt");
+		TEXT=new BitmapText(font);
+		TEXT.setName("TrackingStats");
+		// The gui bucket is rendered in screen space
+		TEXT.setQueueBucket(Bucket.Gui);
+	}
+
+	@Override
+	protected void onEnable() {
+		for(GeometryUpdateDetector d:DETECTORS)d.addMetricsListener(METRICS);
+		TRACKER.addMetricsListener(METRICS);
+		VIEWPORT.getRoot().attachChild(TEXT);
+		VIEWPORT.setEnabled(this,true);
+		SINCE_REFRESH=refreshInterval;
+	}
+
+	@Override
+	protected void onDisable() {
+		for(GeometryUpdateDetector d:DETECTORS)d.removeMetricsListener(METRICS);
+		TRACKER.removeMetricsListener(METRICS);
+		TEXT.removeFromParent();
+		VIEWPORT.setEnabled(this,false);
+	}
+
+	@Override
+	public void update(float tpf) {
+		SINCE_REFRESH+=tpf;
+		if(SINCE_REFRESH<refreshInterval)return;
+		SINCE_REFRESH=0;
+		JmxTrackingMetrics m=METRICS;
+		TEXT.setText(String.format(
+			"Detectors: %d, visited %d, snapshots %d\n"
+			+"  new %d, mesh %d, transform %d, removed %d\n"
+			+"  update %.3f ms, listeners %.3f ms\n"
+			+"Tracker: %d buffers, CPU %d, GPU %d, usage %d, type %d, ID %d\n"
+			+"  updates CPU %d, GPU %d, usage %d, type %d, ID %d\n"
+			+"  render %.3f ms, postRender %.3f ms, CPU hashes %d KB",
+			m.getDetectors(),m.getGeometriesVisited(),m.getSnapshots(),
+			m.getNewGeometries(),m.getMeshUpdates(),m.getTransformUpdates(),m.getRemovedGeometries(),
+			m.getUpdateNanos()/1e6,m.getDispatchNanos()/1e6,
+			m.getTrackedBuffers(),m.getTrackedBuffersCPU(),m.getTrackedBuffersGPU(),m.getTrackedBuffersUsage(),m.getTrackedBuffersType(),m.getTrackedBuffersID(),
+			m.getUpdatesCPU(),m.getUpdatesGPU(),m.getUpdatesUsage(),m.getUpdatesType(),m.getUpdatesID(),
+			m.getRenderNanos()/1e6,m.getPostRenderNanos()/1e6,m.getCPUSnapshotBytes()/1024));
+		Camera cam=getApplication().getCamera();
+		TEXT.setLocalTranslation(10,cam.getHeight()-10,0);
+	}
+
+	@Override
+	protected void cleanup(Application app) {}
+}
@@ -5,13 +5,14 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.jme3.app.Application;
-import com.jme3.material.Material;
 import com.jme3.math.ColorRGBA;
 import com.jme3.scene.Geometry;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.Mesh.Mode;
+import com.jme3.scene.instancing.InstancedGeometry;
 
 import jme3.ext.AbstractGeometryDebuggerAppState;
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
 import jme3.ext.GeometryUpdateDetector.GeometryState;
 
 import com.jme3.scene.Spatial;
@@ -27,7 +28,7 @@ import lombok.extern.log4j.Log4j2;
 public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 
 	private Map<Geometry,Geometry> generatedGeometries=new HashMap<Geometry,Geometry>();
-	private Material mat;
+	private SharedMaterialKey matKey;
 	private ColorRGBA color=ColorRGBA.Blue;
 
 	public WireframeDebugAppState(){
@@ -41,9 +42,7 @@ public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 	@Override
 	public void initialize(Application app) {
 		super.initialize(app);
-		mat=new Material(app.getAssetManager(),"Common/MatDefs/Misc/Unshaded.j3md");
-		mat.getAdditionalRenderState().setWireframe(true);
-		mat.setColor("Color",color);
+		matKey=SharedMaterialKey.color(color,true);
 	}
 
 	@Override
@@ -59,7 +58,10 @@ public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 	public void setColor(ColorRGBA c) {
 		color=c;
 		if(isInitialized()){
-			mat.setColor("Color",color);
+			SharedMaterialKey old=matKey;
+			matKey=SharedMaterialKey.color(color,true);
+			for(Map.Entry<Geometry,Geometry> e:generatedGeometries.entrySet())e.getValue().setMaterial(getSharedMaterial(matKey,e.getKey()));
+			if(!old.equals(matKey))releaseSharedMaterial(old);
 		}
 	}
 
@@ -68,7 +70,14 @@ public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 		if(GeometryState.isSet(state,GeometryState.NONE))return false;
 		Mesh mesh=g.getMesh();
 
-
+		if(GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED)&&!GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)){
+			// The generated geometry shares the mesh with the source, updates of its buffers are already visible.
+			Geometry generated=generatedGeometries.get(g);
+			if(generated!=null&&generated.getMesh()==mesh){
+				generated.setLocalTransform(g.getWorldTransform());
+				return true;
+			}
+		}
 		
 		if(GeometryState.isSet(state,GeometryState.GEOMETRY_REMOVED)||GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED)){
 			Geometry generated=generatedGeometries.get(g);
@@ -87,11 +96,16 @@ public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 			// Works only with triangle based meshes
 			if(mesh.getMode()!=Mode.Triangles) return false;
 	
-			Geometry generated=g.clone();
-			generated.setName(generated.getName()+"~Wireframe");
-			generated.setMaterial(mat);
-	
-			generated.setLocalTransform(g.getWorldTransform());
+			Geometry generated;
+			if(g instanceof InstancedGeometry){
+				// Drawn once per instance, sharing the mesh and the instance data
+				generated=createDebugGeometry(g.getName()+"~Wireframe",g,mesh,matKey);
+			}else{
+				generated=g.clone();
+				generated.setName(generated.getName()+"~Wireframe");
+				generated.setMaterial(getSharedMaterial(matKey));
+				generated.setLocalTransform(g.getWorldTransform());
+			}
 	
 			attachSpatial(generated);
 			generatedGeometries.put(g,generated);
@@ -110,8 +124,7 @@ public class WireframeDebugAppState extends AbstractGeometryDebuggerAppState{
 
 	@Override
 	protected void cleanup(Application app) {
-		// TODO Auto-generated method stub
-		
+		super.cleanup(app);
 	}
 
 
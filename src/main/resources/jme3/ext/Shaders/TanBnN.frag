@@ -0,0 +1,6 @@
+in vec4 gColor;
+out vec4 outFragColor;
+
+void main(){
+    outFragColor=gColor;
+}
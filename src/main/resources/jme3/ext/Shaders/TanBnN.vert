@@ -0,0 +1,23 @@
+in vec3 inPosition;
+in vec3 inNormal;
+#ifdef HAS_TANGENTS
+in vec4 inTangent;
+out vec4 vTangent;
+#endif
+#ifdef HAS_BINORMALS
+in vec3 inBinormal;
+out vec3 vBinormal;
+#endif
+out vec3 vNormal;
+
+void main(){
+    // Model space, projected by the geometry shader
+    gl_Position=vec4(inPosition,1.0);
+    vNormal=inNormal;
+    #ifdef HAS_TANGENTS
+        vTangent=inTangent;
+    #endif
+    #ifdef HAS_BINORMALS
+        vBinormal=inBinormal;
+    #endif
+}
@@ -0,0 +1,116 @@
+package jme3.ext.tests;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AppState;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Geometry;
+import com.jme3.system.JmeSystem;
+import com.jme3.system.NullRenderer;
+
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+
+/**
+ * Application that runs without a display: a RenderManager over a NullRenderer and frames driven by the test with {@link #frame(float)}.
+ *
+ * @author Riccardo Balbo
+ */
+public class HeadlessHarness extends SimpleApplication{
+
+	/**
+	 * Listener that records every event with the frame in which it has been received
+	 */
+	public static class EventRecorder implements GeometryUpdateListener{
+		public static class Event{
+			public final int frame;
+			public final Geometry geom;
+			public final byte state;
+
+			public Event(int frame,Geometry geom,byte state){
+				this.frame=frame;
+				this.geom=geom;
+				this.state=state;
+			}
+
+			@Override
+			public String toString(){
+				return "frame "+frame+" "+geom.getName()+" state "+state;
+			}
+		}
+
+		private final HeadlessHarness APP;
+		public final List<Event> events=new ArrayList<Event>();
+
+		public EventRecorder(HeadlessHarness app){
+			APP=app;
+		}
+
+		@Override
+		public boolean onUpdate(float tpf, Geometry g, byte state) {
+			if(state!=GeometryState.NONE)events.add(new Event(APP.getFrame(),g,state));
+			return true;
+		}
+
+		/**
+		 * @return the events of the given geometry that have all the flags of state set
+		 */
+		public List<Event> get(Geometry g,byte state){
+			List<Event> out=new ArrayList<Event>();
+			for(Event e:events){
+				if(e.geom==g&&GeometryState.isSet(e.state,state))out.add(e);
+			}
+			return out;
+		}
+
+		public void clear(){
+			events.clear();
+		}
+	}
+
+	private int frame=0;
+
+	public HeadlessHarness(){
+		super(new AppState[0]);
+		assetManager=JmeSystem.newAssetManager(Thread.currentThread().getContextClassLoader().getResource("com/jme3/asset/Desktop.cfg"));
+		renderManager=new RenderManager(new NullRenderer());
+		cam=new Camera(640,480);
+		cam.setFrustumPerspective(45f,640f/480f,1f,1000f);
+		cam.setLocation(new Vector3f(0,0,10));
+		cam.lookAt(Vector3f.ZERO,Vector3f.UNIT_Y);
+		viewPort=renderManager.createMainView("Default",cam);
+		viewPort.attachScene(rootNode);
+	}
+
+	@Override
+	public void simpleInitApp() {}
+
+	/**
+	 * @return the number of frames run so far, the frame in progress during a frame.
+	 */
+	public int getFrame(){
+		return frame;
+	}
+
+	/**
+	 * Run one frame: update of the appstates and of the scene, render and postRender.
+	 */
+	public void frame(float tpf){
+		frame++;
+		stateManager.update(tpf);
+		rootNode.updateLogicalState(tpf);
+		rootNode.updateGeometricState();
+		stateManager.render(renderManager);
+		renderManager.render(tpf,true);
+		stateManager.postRender();
+	}
+
+	public void frames(int n){
+		for(int i=0;i<n;i++)frame(0.016f);
+	}
+}
@@ -0,0 +1,25 @@
+package jme3.ext.tests;
+
+
+import com.jme3.math.ColorRGBA;
+
+import jme3.ext.impl.BatchedWireframeDebugAppState;
+
+/**
+ * @author Riccardo Balbo
+ */
+public class TestBatchedWireframeDebugAppState extends TestTanBnNDebugAppState{
+
+	public static void main(String[] args) {
+		TestBatchedWireframeDebugAppState app=new TestBatchedWireframeDebugAppState();
+		app.start();
+	}
+
+	@Override
+	public void applyAppState() {
+		BatchedWireframeDebugAppState appstate=new BatchedWireframeDebugAppState();
+		appstate.setColor(ColorRGBA.Yellow); // Default color is blue
+		appstate.setCellSize(4f);
+		stateManager.attach(appstate);
+	}
+}
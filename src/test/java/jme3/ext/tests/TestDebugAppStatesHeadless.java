@@ -0,0 +1,554 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Mesh.Mode;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.instancing.InstancedGeometry;
+import com.jme3.scene.instancing.InstancedNode;
+import com.jme3.scene.shape.Box;
+import com.jme3.scene.shape.Sphere;
+import com.jme3.util.TangentBinormalGenerator;
+
+import jme3.ext.DebugViewPortAppState;
+import jme3.ext.DebugViewPortAppState.SharedMaterialKey;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.InstancedDebugGeometry;
+import jme3.ext.SpatialChangeIndex;
+import jme3.ext.impl.BatchedWireframeDebugAppState;
+import jme3.ext.impl.GpuTanBnNDebugAppState;
+import jme3.ext.impl.TanBnNDebugAppState;
+import jme3.ext.impl.WireframeDebugAppState;
+import jme3.ext.tests.HeadlessHarness.EventRecorder;
+
+/**
+ * Drives the debug appstates through scripted frames and checks the generated geometries in the debug scene.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestDebugAppStatesHeadless{
+	private HeadlessHarness app;
+
+	private Node debugRoot(){
+		return DebugViewPortAppState.getInstance(app).getRoot();
+	}
+
+	private Geometry find(String name){
+		Spatial s=debugRoot().getChild(name);
+		return s instanceof Geometry?(Geometry)s:null;
+	}
+
+	@Test
+	public void testWireframe() {
+		app=new HeadlessHarness();
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		app.getRootNode().attachChild(g);
+		app.getStateManager().attach(new WireframeDebugAppState());
+		app.frames(2);
+
+		Geometry wf=find("G~Wireframe");
+		assertNotNull(wf);
+		assertTrue(wf.getMaterial().getAdditionalRenderState().isWireframe());
+
+		g.setLocalTranslation(1,2,3);
+		app.frames(1);
+		assertEquals(new Vector3f(1,2,3),wf.getLocalTranslation());
+
+		g.removeFromParent();
+		app.frames(1);
+		assertNull(find("G~Wireframe"));
+	}
+
+	@Test
+	public void testTanBnN() {
+		app=new HeadlessHarness();
+		Geometry g=new Geometry("G",new Sphere(8,8,1));
+		TangentBinormalGenerator.generate(g);
+		app.getRootNode().attachChild(g);
+		app.getStateManager().attach(new TanBnNDebugAppState());
+		app.frames(2);
+
+		Geometry tbn=find("G~Tangents");
+		assertNotNull(tbn);
+		assertEquals(Mode.Lines,tbn.getMesh().getMode());
+		assertEquals(g.getMesh().getVertexCount()*4,tbn.getMesh().getVertexCount());
+	}
+
+	@Test
+	public void testTanBnNBackground() throws InterruptedException {
+		app=new HeadlessHarness();
+		Geometry g=new Geometry("G",new Sphere(8,8,1));
+		TangentBinormalGenerator.generate(g);
+		app.getRootNode().attachChild(g);
+		TanBnNDebugAppState state=new TanBnNDebugAppState();
+		state.setBackgroundBuilding(true);
+		app.getStateManager().attach(state);
+
+		// The lines are built on the worker thread and attached in a later frame
+		for(int i=0;i<100&&find("G~Tangents")==null;i++){
+			app.frames(1);
+			Thread.sleep(10);
+		}
+		Geometry tbn=find("G~Tangents");
+		assertNotNull(tbn);
+		assertEquals(g.getMesh().getVertexCount()*4,tbn.getMesh().getVertexCount());
+	}
+
+	@Test
+	public void testCulling() {
+		app=new HeadlessHarness();
+		// The camera is in 0,0,10 looking toward -z
+		Geometry front=new Geometry("Front",new Box(1,1,1));
+		Geometry behind=new Geometry("Behind",new Box(1,1,1));
+		behind.setLocalTranslation(0,0,50);
+		app.getRootNode().attachChild(front);
+		app.getRootNode().attachChild(behind);
+		WireframeDebugAppState state=new WireframeDebugAppState();
+		state.setCulling(true);
+		app.getStateManager().attach(state);
+		app.frames(3);
+		assertNotNull(find("Front~Wireframe"));
+		assertNull(find("Behind~Wireframe"));
+
+		app.getCamera().lookAt(new Vector3f(0,0,50),Vector3f.UNIT_Y);
+		app.frames(1);
+		assertNotNull(find("Behind~Wireframe"));
+
+		// With a still camera only the geometries that changed are tested again
+		Geometry moving=new Geometry("Moving",new Box(1,1,1));
+		moving.setLocalTranslation(0,0,-50);
+		app.getRootNode().attachChild(moving);
+		app.frames(3);
+		assertNull(find("Moving~Wireframe"));
+		moving.setLocalTranslation(0,0,40);
+		app.frames(2);
+		assertNotNull(find("Moving~Wireframe"));
+	}
+
+	@Test
+	public void testTimeBudget() {
+		app=new HeadlessHarness();
+		for(int i=0;i<500;i++){
+			Geometry g=new Geometry("G"+i,new Box(0.1f,0.1f,0.1f));
+			g.setLocalTranslation(i%20-10,i/20-10,-i%7);
+			app.getRootNode().attachChild(g);
+		}
+		WireframeDebugAppState state=new WireframeDebugAppState();
+		state.setTimeBudget(1000f);
+		state.setGenerationBudget(50);
+		app.getStateManager().attach(state);
+		app.frames(2);
+		// At most 50 overlays per frame
+		assertTrue(debugRoot().getQuantity()<=50);
+		assertTrue(state.getPendingCount()>=450);
+
+		app.frames(20);
+		assertEquals(500,debugRoot().getQuantity());
+		assertEquals(0,state.getPendingCount());
+		assertEquals(1f,state.getProgress(),0f);
+	}
+
+	@Test
+	public void testRegion() {
+		app=new HeadlessHarness();
+		// The camera is in 0,0,10
+		Geometry near=new Geometry("Near",new Box(1,1,1));
+		Geometry far=new Geometry("Far",new Box(1,1,1));
+		far.setLocalTranslation(200,0,0);
+		app.getRootNode().attachChild(near);
+		app.getRootNode().attachChild(far);
+		WireframeDebugAppState state=new WireframeDebugAppState();
+		state.setRegionRadius(20);
+		state.setRegionCellSize(10);
+		app.getStateManager().attach(state);
+		app.frames(3);
+		assertNotNull(find("Near~Wireframe"));
+		assertNull(find("Far~Wireframe"));
+
+		far.setLocalTranslation(5,0,0);
+		app.frames(2);
+		assertNotNull(find("Far~Wireframe"));
+
+		app.getCamera().setLocation(new Vector3f(500,0,0));
+		app.frames(2);
+		assertNull(find("Near~Wireframe"));
+		assertNull(find("Far~Wireframe"));
+
+		// The index is shared by the states with a region and removed with the last one
+		GeometryUpdateDetector detector=GeometryUpdateDetector.getInstance(app);
+		WireframeDebugAppState other=new WireframeDebugAppState();
+		other.setRegionRadius(20);
+		app.getStateManager().attach(other);
+		app.frames(1);
+		assertNotNull(detector.getSpatialIndex());
+		assertEquals(2,detector.getSpatialIndex().getSubscriptionCount());
+		state.setEnabled(false);
+		app.frames(1);
+		assertNotNull(detector.getSpatialIndex());
+		other.setEnabled(false);
+		app.frames(1);
+		assertNull(detector.getSpatialIndex());
+
+		// An index installed by the application is kept
+		SpatialChangeIndex own=new SpatialChangeIndex(10);
+		detector.setSpatialIndex(own);
+		other.setEnabled(true);
+		app.frames(1);
+		assertEquals(1,own.getSubscriptionCount());
+		other.setEnabled(false);
+		app.frames(1);
+		assertSame(own,detector.getSpatialIndex());
+	}
+
+	@Test
+	public void testInstanced() {
+		app=new HeadlessHarness();
+		InstancedNode node=new InstancedNode("Instanced");
+		Box box=new Box(1,1,1);
+		Material mat=new Material(app.getAssetManager(),"Common/MatDefs/Misc/Unshaded.j3md");
+		mat.setBoolean("UseInstancing",true);
+		Geometry instances[]=new Geometry[50];
+		for(int i=0;i<instances.length;i++){
+			instances[i]=new Geometry("G"+i,box);
+			instances[i].setMaterial(mat);
+			instances[i].setLocalTranslation(i*3,0,0);
+			node.attachChild(instances[i]);
+		}
+		node.instance();
+		app.getRootNode().attachChild(node);
+		GeometryUpdateDetector detector=GeometryUpdateDetector.getInstance(app);
+		EventRecorder recorder=new EventRecorder(app);
+		detector.addListener(recorder);
+		app.getStateManager().attach(new WireframeDebugAppState());
+		app.frames(2);
+
+		// Only the InstancedGeometry is tracked and gets a single overlay, drawn once per instance
+		assertEquals(recorder.events.toString(),1,recorder.events.size());
+		InstancedGeometry ig=(InstancedGeometry)recorder.events.get(0).geom;
+		assertEquals(1,debugRoot().getQuantity());
+		InstancedDebugGeometry wf=(InstancedDebugGeometry)debugRoot().getChild(0);
+		assertSame(ig,wf.getSource());
+		assertSame(box,wf.getMesh());
+		assertEquals(instances.length,wf.getActualNumInstances());
+		assertTrue(wf.getMaterial().getParam("UseInstancing")!=null);
+
+		// The instance transforms are written by the control in the render and uploaded by the renderer, that don't run headless
+		recorder.clear();
+		instances[3].move(0,1,0);
+		ig.updateInstances();
+		ig.getTransformUserInstanceData().resetObject();
+		ig.getTransformUserInstanceData().setId(10);
+		app.frames(2);
+		assertEquals(1,recorder.get(ig,GeometryState.GEOMETRY_TRANFORM_UPDATED).size());
+		assertEquals(0,recorder.get(ig,GeometryState.GEOMETRY_MESH_UPDATED).size());
+		assertEquals(1,debugRoot().getQuantity());
+	}
+
+	private void tanBnNShared(boolean incremental) {
+		app=new HeadlessHarness();
+		Sphere shared=new Sphere(8,8,1);
+		TangentBinormalGenerator.generate(shared);
+		Geometry users[]=new Geometry[3];
+		for(int i=0;i<users.length;i++){
+			users[i]=new Geometry("S"+i,shared);
+			users[i].setLocalTranslation(i*3,0,0);
+			app.getRootNode().attachChild(users[i]);
+		}
+		Geometry other=new Geometry("O",new Sphere(8,8,1));
+		TangentBinormalGenerator.generate(other);
+		app.getRootNode().attachChild(other);
+		TanBnNDebugAppState state=new TanBnNDebugAppState();
+		state.setIncremental(incremental);
+		app.getStateManager().attach(state);
+		app.frames(2);
+
+		// One lines mesh per source mesh, one debug geometry per source geometry
+		assertEquals(2,state.getSharedLinesCount());
+		assertEquals(4,debugRoot().getQuantity());
+		Mesh lines=find("S0~Tangents").getMesh();
+		assertSame(lines,find("S1~Tangents").getMesh());
+		assertSame(lines,find("S2~Tangents").getMesh());
+		assertTrue(lines!=find("O~Tangents").getMesh());
+		assertEquals(new Vector3f(6,0,0),find("S2~Tangents").getLocalTranslation());
+
+		// Updated once for all the geometries
+		VertexBuffer vb=shared.getBuffer(Type.Position);
+		vb.resetObject();
+		vb.setId(10);
+		app.frames(2);
+		Mesh updated=find("S0~Tangents").getMesh();
+		if(incremental)assertSame(lines,updated);
+		else assertTrue(lines!=updated);
+		assertSame(updated,find("S1~Tangents").getMesh());
+		assertSame(updated,find("S2~Tangents").getMesh());
+
+		// Released with the last geometry
+		users[0].removeFromParent();
+		users[1].removeFromParent();
+		app.frames(1);
+		assertEquals(2,state.getSharedLinesCount());
+		assertSame(updated,find("S2~Tangents").getMesh());
+		users[2].removeFromParent();
+		app.frames(1);
+		assertEquals(1,state.getSharedLinesCount());
+		assertEquals(1,debugRoot().getQuantity());
+	}
+
+	@Test
+	public void testTanBnNShared() {
+		tanBnNShared(false);
+	}
+
+	@Test
+	public void testTanBnNSharedIncremental() {
+		tanBnNShared(true);
+	}
+
+	@Test
+	public void testGpuTanBnN() {
+		app=new HeadlessHarness();
+		Mesh sphere=new Sphere(8,8,1);
+		TangentBinormalGenerator.generate(sphere);
+		int buffers=sphere.getBufferList().size();
+		Geometry g=new Geometry("G",sphere);
+		Geometry b=new Geometry("B",new Box(1,1,1)); // No tangents
+		app.getRootNode().attachChild(g);
+		app.getRootNode().attachChild(b);
+		GpuTanBnNDebugAppState state=new GpuTanBnNDebugAppState();
+		state.setDebugLinesLength(0.2f);
+		app.getStateManager().attach(state);
+		app.frames(2);
+
+		// The source mesh is drawn again with the TBN material, nothing is generated on the CPU
+		Geometry debug=find("G~GpuTangents");
+		assertNotNull(debug);
+		assertSame(sphere,debug.getMesh());
+		assertEquals(buffers,sphere.getBufferList().size());
+		Material mat=debug.getMaterial();
+		assertEquals("TanBnN Debug",mat.getMaterialDef().getName());
+		assertEquals(true,mat.getParam("HasTangents").getValue());
+		assertEquals(0.2f,(Float)mat.getParam("LineLength").getValue(),0f);
+		Material boxMat=find("B~GpuTangents").getMaterial();
+		assertTrue(boxMat!=mat);
+		assertEquals(false,boxMat.getParam("HasTangents").getValue());
+
+		// Only the parameter changes
+		state.setDebugLinesLength(0.5f);
+		app.frames(1);
+		assertSame(debug,find("G~GpuTangents"));
+		assertSame(sphere,debug.getMesh());
+		assertSame(mat,debug.getMaterial());
+		assertEquals(0.5f,(Float)mat.getParam("LineLength").getValue(),0f);
+		assertEquals(0.5f,(Float)boxMat.getParam("LineLength").getValue(),0f);
+
+		// The shared material is not modified
+		Material shared=state.getSharedMaterial(new SharedMaterialKey(GpuTanBnNDebugAppState.MATDEF).set("HasTangents",true).set("HasBinormals",false));
+		assertTrue(shared!=mat);
+		MatParam length=shared.getParam("LineLength");
+		assertTrue(length==null||!Float.valueOf(0.5f).equals(length.getValue()));
+	}
+
+	@Test
+	public void testSharedMaterialKeyIsCopied() {
+		app=new HeadlessHarness();
+		DebugViewPortAppState viewport=DebugViewPortAppState.getInstance(app);
+		SharedMaterialKey key=SharedMaterialKey.color(ColorRGBA.Red,false);
+		Material red=viewport.getMaterial(app.getAssetManager(),key);
+
+		// Modifying the key after the lookup doesn't affect the cache
+		key.set("Color",ColorRGBA.Green);
+		assertSame(red,viewport.getMaterial(app.getAssetManager(),SharedMaterialKey.color(ColorRGBA.Red,false)));
+		Material green=viewport.getMaterial(app.getAssetManager(),key);
+		assertTrue(red!=green);
+		assertEquals(ColorRGBA.Green,green.getParam("Color").getValue());
+		assertEquals(ColorRGBA.Red,red.getParam("Color").getValue());
+	}
+
+	@Test
+	public void testSharedMaterialRelease() {
+		app=new HeadlessHarness();
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		app.getRootNode().attachChild(g);
+		WireframeDebugAppState a=new WireframeDebugAppState();
+		BatchedWireframeDebugAppState b=new BatchedWireframeDebugAppState();
+		app.getStateManager().attach(a);
+		app.getStateManager().attach(b);
+		app.frames(3);
+		DebugViewPortAppState viewport=DebugViewPortAppState.getInstance(app);
+		int count=viewport.getMaterialCount();
+
+		// The material of the previous color is dropped when its only user changes color
+		for(int i=0;i<20;i++){
+			ColorRGBA c=new ColorRGBA(i/20f,0,0,1);
+			a.setColor(c);
+			b.setColor(c);
+			app.frames(1);
+			assertEquals(count,viewport.getMaterialCount());
+		}
+		assertEquals(new ColorRGBA(19/20f,0,0,1),find("G~Wireframe").getMaterial().getParam("Color").getValue());
+
+		// Still used by the other appstate
+		Material red=a.getSharedMaterial(SharedMaterialKey.color(ColorRGBA.Red,true));
+		WireframeDebugAppState c=new WireframeDebugAppState();
+		c.setColor(ColorRGBA.Red);
+		app.getStateManager().attach(c);
+		app.frames(2);
+		a.releaseSharedMaterial(SharedMaterialKey.color(ColorRGBA.Red,true));
+		assertSame(red,viewport.getMaterial(app.getAssetManager(),SharedMaterialKey.color(ColorRGBA.Red,true),c));
+
+		// Released when the appstates are cleaned up, materials requested without a user stay
+		Material pinned=viewport.getMaterial(app.getAssetManager(),SharedMaterialKey.color(ColorRGBA.Green,false));
+		app.getStateManager().detach(a);
+		app.getStateManager().detach(b);
+		app.getStateManager().detach(c);
+		app.frames(1);
+		assertEquals(1,viewport.getMaterialCount());
+		assertSame(pinned,viewport.getMaterial(app.getAssetManager(),SharedMaterialKey.color(ColorRGBA.Green,false)));
+	}
+
+	/**
+	 * Triangle whose tangents are not orthogonal to the normals and without binormals
+	 */
+	private static Mesh skewedTriangle(){
+		Mesh m=new Mesh();
+		m.setBuffer(Type.Position,3,new float[]{0,0,0, 1,0,0, 0,1,0});
+		m.setBuffer(Type.Normal,3,new float[]{0,0,1, 0,0,1, 0,0,1});
+		m.setBuffer(Type.Tangent,4,new float[]{1,1,1,1, 1,1,1,1, 1,1,1,-1});
+		m.setBuffer(Type.Index,3,new short[]{0,1,2});
+		m.updateBound();
+		return m;
+	}
+
+	private void assertSameLines(Mesh expected,Mesh actual){
+		FloatBuffer e=expected.getFloatBuffer(Type.Position);
+		FloatBuffer a=actual.getFloatBuffer(Type.Position);
+		assertEquals(e.limit(),a.limit());
+		for(int i=0;i<e.limit();i++)assertEquals("Element "+i,e.get(i),a.get(i),0.0001f);
+	}
+
+	private void tanBnNLines(boolean incremental) {
+		app=new HeadlessHarness();
+		Mesh src=skewedTriangle();
+		app.getRootNode().attachChild(new Geometry("T",src));
+		TanBnNDebugAppState state=new TanBnNDebugAppState();
+		state.setIncremental(incremental);
+		state.setDebugLinesLength(0.2f);
+		app.getStateManager().attach(state);
+		app.frames(2);
+		assertSameLines(TangentBinormalGenerator.genTbnLines(src,0.2f),find("T~Tangents").getMesh());
+
+		// The length applies to the existing lines
+		state.setDebugLinesLength(0.5f);
+		app.frames(1);
+		assertSameLines(TangentBinormalGenerator.genTbnLines(src,0.5f),find("T~Tangents").getMesh());
+	}
+
+	@Test
+	public void testTanBnNLines() {
+		tanBnNLines(false);
+	}
+
+	@Test
+	public void testTanBnNLinesIncremental() {
+		tanBnNLines(true);
+	}
+
+	@Test
+	public void testTanBnNBinormalRemoved() {
+		app=new HeadlessHarness();
+		Mesh src=skewedTriangle();
+		src.setBuffer(Type.Binormal,3,new float[]{0,1,0, 0,1,0, 0,1,0});
+		app.getRootNode().attachChild(new Geometry("T",src));
+		TanBnNDebugAppState state=new TanBnNDebugAppState();
+		state.setIncremental(true);
+		app.getStateManager().attach(state);
+		app.frames(2);
+		Mesh lines=find("T~Tangents").getMesh();
+		assertSameLines(TangentBinormalGenerator.genTbnLines(src,0.1f),lines);
+
+		// Same layout without the binormals: they are computed from the tangents, in the same lines mesh
+		src.clearBuffer(Type.Binormal);
+		app.frames(2);
+		assertSame(lines,find("T~Tangents").getMesh());
+		assertSameLines(TangentBinormalGenerator.genTbnLines(src,0.1f),lines);
+	}
+
+	private Geometry batchOf(Geometry source){
+		Vector3f center=source.getWorldBound().getCenter();
+		for(Spatial s:debugRoot().getChildren()){
+			// Batches are in world space with an identity transform
+			if(s.getName().startsWith("WireframeBatch~")&&((Geometry)s).getMesh().getBound().contains(center))return (Geometry)s;
+		}
+		return null;
+	}
+
+	@Test
+	public void testBatchedWireframe() {
+		app=new HeadlessHarness();
+		Geometry a=new Geometry("A",new Box(1,1,1));
+		Geometry b=new Geometry("B",new Box(1,1,1));
+		a.setLocalTranslation(2,2,2);
+		b.setLocalTranslation(10,2,2);
+		app.getRootNode().attachChild(a);
+		app.getRootNode().attachChild(b);
+		BatchedWireframeDebugAppState appstate=new BatchedWireframeDebugAppState();
+		appstate.setCellSize(4f);
+		app.getStateManager().attach(appstate);
+		// Batches are rebuilt in the frame after the event
+		app.frames(3);
+
+		Geometry batchA=batchOf(a);
+		Geometry batchB=batchOf(b);
+		assertNotNull(batchA);
+		assertNotNull(batchB);
+		assertNotSame(batchA,batchB);
+		VertexBuffer posA=batchA.getMesh().getBuffer(Type.Position);
+		VertexBuffer posB=batchB.getMesh().getBuffer(Type.Position);
+		Buffer dataA=posA.getData();
+		Buffer dataB=posB.getData();
+		posA.clearUpdateNeeded();
+		posB.clearUpdateNeeded();
+
+		// Moves inside its cell: only the batch of A is rebuilt, in the same buffers
+		a.move(0.5f,0,0);
+		app.frames(2);
+		assertSame(batchA,batchOf(a));
+		assertSame(posA,batchA.getMesh().getBuffer(Type.Position));
+		assertSame(dataA,posA.getData());
+		assertTrue(posA.isUpdateNeeded());
+		assertEquals(2.5f,((BoundingBox)batchA.getMesh().getBound()).getCenter().x,0.0001f);
+		assertSame(dataB,posB.getData());
+		assertFalse(posB.isUpdateNeeded());
+
+		// Moves to the cell of B: the batch of A is removed and B is rebuilt with both the geometries
+		a.setLocalTranslation(10,2,2);
+		app.frames(2);
+		assertNull(batchA.getParent());
+		assertSame(batchB,batchOf(a));
+		assertEquals(2*a.getMesh().getVertexCount(),batchB.getMesh().getVertexCount());
+		assertNotSame(dataB,posB.getData());
+	}
+}
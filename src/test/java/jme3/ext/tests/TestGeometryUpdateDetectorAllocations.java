@@ -0,0 +1,142 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.jme3.app.SimpleApplication;
+import com.jme3.app.state.AppState;
+import com.jme3.renderer.RenderManager;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.shape.Box;
+import com.jme3.system.NullRenderer;
+
+import jme3.ext.DirtyTrackingNode;
+import jme3.ext.GeometryChangeSet;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.GeometryUpdateDetector.GeometryChangeSetListener;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListener;
+import jme3.ext.VertexBufferUpdateTracker;
+
+/**
+ * Check that GeometryUpdateDetector.update doesn't produce garbage in steady state
+ *
+ * @author Riccardo Balbo
+ */
+public class TestGeometryUpdateDetectorAllocations{
+	private static final int GEOMETRIES=1000;
+	private static final int WARMUP_FRAMES=2000;
+	private static final int FRAMES=200;
+
+	private final com.sun.management.ThreadMXBean THREAD_MX=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	private SimpleApplication app;
+	private Geometry geoms[];
+	private int frame;
+	private int id;
+
+	private long allocatedBytes(){
+		return THREAD_MX.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private GeometryUpdateDetector setUp(Node root,boolean eventDriven){
+		app=new SimpleApplication(new AppState[0]){
+			@Override
+			public void simpleInitApp() {}
+		};
+		geoms=new Geometry[GEOMETRIES];
+		Box box=new Box(1,1,1);
+		for(int i=0;i<GEOMETRIES;i++){
+			Node parent=root;
+			if(root instanceof DirtyTrackingNode&&i%10==0){
+				parent=new DirtyTrackingNode();
+				root.attachChild(parent);
+			}
+			// Every tenth geometry has its own mesh, the others share one
+			geoms[i]=new Geometry("G"+i,i%10==0?new Box(1,1,1):box);
+			parent.attachChild(geoms[i]);
+		}
+		GeometryUpdateDetector detector=new GeometryUpdateDetector(root);
+		detector.setEventDriven(eventDriven);
+		detector.addListener(new GeometryUpdateListener(){
+			@Override
+			public boolean onUpdate(float tpf, Geometry g, byte state) {
+				return true;
+			}
+		});
+		detector.addChangeSetListener(new GeometryChangeSetListener(){
+			@Override
+			public void onChanges(float tpf, GeometryChangeSet changes) {}
+		});
+		app.getStateManager().attach(detector);
+		app.getStateManager().update(0); // initialize
+		return detector;
+	}
+
+	/**
+	 * Move some geometries and update some buffers, outside of the measured region
+	 */
+	private void step(Node root){
+		for(int i=frame%10;i<GEOMETRIES;i+=10){
+			geoms[i].setLocalTranslation(frame%7,0,0);
+		}
+		for(int i=frame%20;i<GEOMETRIES;i+=100){
+			VertexBuffer vb=geoms[i].getMesh().getBuffer(Type.Position);
+			vb.resetObject();
+			vb.setId(++id); // picked up by the ID tracking
+		}
+		root.updateLogicalState(0.016f);
+		root.updateGeometricState();
+		VertexBufferUpdateTracker tracker=app.getStateManager().getState(VertexBufferUpdateTracker.class);
+		RenderManager rm=new RenderManager(new NullRenderer());
+		tracker.render(rm);
+		tracker.postRender();
+		frame++;
+	}
+
+	private long measure(Node root,GeometryUpdateDetector detector){
+		for(int i=0;i<WARMUP_FRAMES;i++){
+			step(root);
+			detector.update(0.016f);
+		}
+
+		// Cost of the measurement itself
+		long overhead=Long.MAX_VALUE;
+		for(int i=0;i<10;i++){
+			long s=allocatedBytes();
+			overhead=Math.min(overhead,allocatedBytes()-s);
+		}
+
+		long allocated=0;
+		for(int i=0;i<FRAMES;i++){
+			step(root);
+			long s=allocatedBytes();
+			detector.update(0.016f);
+			allocated+=allocatedBytes()-s-overhead;
+		}
+		return allocated;
+	}
+
+	@Test
+	public void testFullTraversal() {
+		assumeTrue(THREAD_MX.isThreadAllocatedMemorySupported()&&THREAD_MX.isThreadAllocatedMemoryEnabled());
+		Node root=new Node();
+		GeometryUpdateDetector detector=setUp(root,false);
+		assertEquals("Bytes allocated by update() in "+FRAMES+" frames",0,measure(root,detector));
+	}
+
+	@Test
+	public void testEventDriven() {
+		assumeTrue(THREAD_MX.isThreadAllocatedMemorySupported()&&THREAD_MX.isThreadAllocatedMemoryEnabled());
+		Node root=new DirtyTrackingNode();
+		GeometryUpdateDetector detector=setUp(root,true);
+		assertEquals("Bytes allocated by update() in "+FRAMES+" frames",0,measure(root,detector));
+	}
+}
@@ -0,0 +1,521 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jme3.material.Material;
+import com.jme3.scene.BatchNode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.instancing.InstancedNode;
+import com.jme3.scene.shape.Box;
+import com.jme3.scene.shape.Sphere;
+import com.jme3.util.BufferUtils;
+
+import jme3.ext.DirtyTrackingNode;
+import jme3.ext.GeometryChangeSet;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.GeometryUpdateDetector.GeometryChangeSetListener;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.GeometryUpdateDetector.GeometryUpdateListenerAdapter;
+import jme3.ext.GeometryUpdateDetector.MeshUpdate;
+import jme3.ext.GeometryUpdateDetector.MeshUpdateListener;
+import jme3.ext.TransformTrackingGeometry;
+import jme3.ext.VertexBufferUpdateTracker;
+import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
+import jme3.ext.tests.HeadlessHarness.EventRecorder;
+import jme3.ext.tests.HeadlessHarness.EventRecorder.Event;
+
+/**
+ * Scripted frames over GeometryUpdateDetector and VertexBufferUpdateTracker, checks which events are reported and in which frame.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestGeometryUpdateDetectorEvents{
+	private HeadlessHarness app;
+	private Node root;
+	private GeometryUpdateDetector detector;
+	private EventRecorder recorder;
+
+	private void setUp(boolean eventDriven){
+		app=new HeadlessHarness();
+		root=eventDriven?new DirtyTrackingNode():new Node();
+		app.getRootNode().attachChild(root);
+		detector=new GeometryUpdateDetector(root);
+		detector.setEventDriven(eventDriven);
+		recorder=new EventRecorder(app);
+		detector.addListener(recorder);
+		app.getStateManager().attach(detector);
+	}
+
+	private void assertSingleEvent(Geometry g,byte state,int frame){
+		List<Event> events=recorder.get(g,state);
+		assertEquals("Events "+recorder.events,1,events.size());
+		assertEquals("Frame of "+events.get(0),frame,events.get(0).frame);
+	}
+
+	private void assertNoEvents(int frames){
+		recorder.clear();
+		app.frames(frames);
+		assertTrue("Unexpected events "+recorder.events,recorder.events.isEmpty());
+	}
+
+	private void lifecycle(boolean eventDriven){
+		setUp(eventDriven);
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		root.attachChild(g);
+
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.NEW_GEOMETRY,1);
+		assertEquals(1,recorder.events.size());
+
+		// Nothing changes: no event, not even from the first postRender of the tracker
+		assertNoEvents(5);
+
+		// Transform updates are reported in the same frame by the full traversal.
+		// In event driven mode the node is stamped by updateGeometricState, that runs after the appstates: one frame later.
+		recorder.clear();
+		g.setLocalTranslation(1,2,3);
+		app.frame(0.016f);
+		int moved=app.getFrame();
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_TRANFORM_UPDATED,eventDriven?moved+1:moved);
+		assertEquals(1,recorder.events.size());
+
+		// Buffer updates are detected by the tracker in postRender and reported in the next frame
+		recorder.clear();
+		VertexBuffer vb=g.getMesh().getBuffer(Type.Position);
+		vb.resetObject();
+		vb.setId(10);
+		app.frame(0.016f);
+		int changed=app.getFrame();
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_MESH_UPDATED,changed+1);
+		assertEquals(1,recorder.events.size());
+		assertNoEvents(3);
+
+		// A new mesh is reported as the transform: it's stamped by the bound refresh in event driven mode
+		recorder.clear();
+		g.setMesh(new Box(2,2,2));
+		app.frame(0.016f);
+		int replaced=app.getFrame();
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_MESH_UPDATED,eventDriven?replaced+1:replaced);
+		assertNoEvents(3);
+
+		// Removal is reported in the same frame
+		recorder.clear();
+		g.removeFromParent();
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_REMOVED,app.getFrame());
+		assertEquals(1,recorder.events.size());
+		assertNoEvents(3);
+	}
+
+	@Test
+	public void testLifecycleFullTraversal() {
+		lifecycle(false);
+	}
+
+	@Test
+	public void testLifecycleEventDriven() {
+		lifecycle(true);
+	}
+
+	/**
+	 * Drops the strong references of the test to a geometry and checks that nothing else keeps it.
+	 */
+	private static boolean isCollected(WeakReference<Geometry> ref) throws InterruptedException{
+		for(int i=0;i<10&&ref.get()!=null;i++){
+			System.gc();
+			Thread.sleep(20);
+		}
+		return ref.get()==null;
+	}
+
+	@Test
+	public void testEventDrivenPlainRoot() throws InterruptedException {
+		// Event driven with a plain Node root: the full traversal is used and the buffer updates must not be queued
+		app=new HeadlessHarness();
+		root=new Node();
+		app.getRootNode().attachChild(root);
+		detector=new GeometryUpdateDetector(root);
+		detector.setEventDriven(true);
+		recorder=new EventRecorder(app);
+		detector.addListener(recorder);
+		app.getStateManager().attach(detector);
+
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		root.attachChild(g);
+		app.frames(2);
+		for(int i=0;i<3;i++){
+			VertexBuffer vb=g.getMesh().getBuffer(Type.Position);
+			vb.resetObject();
+			vb.setId(10+i);
+			app.frames(2);
+		}
+		assertEquals(3,recorder.get(g,GeometryState.GEOMETRY_MESH_UPDATED).size());
+
+		g.removeFromParent();
+		app.frames(2);
+		assertEquals(1,recorder.get(g,GeometryState.GEOMETRY_REMOVED).size());
+		WeakReference<Geometry> ref=new WeakReference<Geometry>(g);
+		g=null;
+		recorder.clear();
+		// The world transform refresh of another geometry overwrites the jME TempVars stack, that still references the removed one
+		Geometry other=new Geometry("Other",new Box(1,1,1));
+		root.attachChild(other);
+		app.frames(1);
+		other.move(1,0,0);
+		app.frames(2);
+		assertTrue(isCollected(ref));
+	}
+
+	@Test
+	public void testLateListener() {
+		setUp(false);
+		Geometry a=new Geometry("A",new Box(1,1,1));
+		Geometry b=new Geometry("B",new Box(1,1,1));
+		root.attachChild(a);
+		root.attachChild(b);
+		app.frames(3);
+
+		// A listener added later receives the geometries already known as new
+		EventRecorder late=new EventRecorder(app);
+		detector.addListener(late);
+		assertEquals(1,late.get(a,GeometryState.NEW_GEOMETRY).size());
+		assertEquals(1,late.get(b,GeometryState.NEW_GEOMETRY).size());
+		assertEquals(2,late.events.size());
+	}
+
+	@Test
+	public void testChangeSet() {
+		setUp(false);
+		final Geometry a=new Geometry("A",new Box(1,1,1));
+		final Geometry b=new Geometry("B",new Box(1,1,1));
+		root.attachChild(a);
+		root.attachChild(b);
+		app.frames(2);
+
+		final int counts[]=new int[5];
+		detector.addChangeSetListener(new GeometryChangeSetListener(){
+			@Override
+			public void onChanges(float tpf, GeometryChangeSet changes) {
+				counts[0]++;
+				counts[1]+=changes.getAdded().size();
+				counts[2]+=changes.getRemoved().size();
+				counts[3]+=changes.getTransformUpdated().size();
+				counts[4]+=changes.getMeshUpdated().size();
+			}
+		});
+		// The current geometries are delivered as added
+		assertEquals(1,counts[0]);
+		assertEquals(2,counts[1]);
+
+		a.move(1,0,0);
+		b.removeFromParent();
+		root.attachChild(new Geometry("C",new Box(1,1,1)));
+		app.frame(0.016f);
+		assertEquals(2,counts[0]);
+		assertEquals(3,counts[1]);
+		assertEquals(1,counts[2]);
+		assertEquals(1,counts[3]);
+		assertEquals(0,counts[4]);
+
+		// No change set is delivered when nothing changed
+		app.frames(3);
+		assertEquals(2,counts[0]);
+	}
+
+	@Test
+	public void testChangeSetAdapter() {
+		setUp(false);
+		EventRecorder adapted=new EventRecorder(app);
+		detector.addChangeSetListener(new GeometryUpdateListenerAdapter(adapted));
+		detector.setAnimatedRefreshRate(10);
+		Geometry skinned=new Geometry("Skinned",new Box(1,1,1));
+		skinned.getMesh().setBuffer(Type.BindPosePosition,3,BufferUtils.clone(skinned.getMesh().getFloatBuffer(Type.Position)));
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		root.attachChild(skinned);
+		root.attachChild(g);
+		app.frames(2);
+
+		// Moved and with a new mesh in the same frame
+		g.move(1,0,0);
+		g.setMesh(new Box(2,2,2));
+		app.frame(0.016f);
+		byte moved=(byte)(GeometryState.GEOMETRY_TRANFORM_UPDATED|GeometryState.GEOMETRY_MESH_UPDATED);
+		assertSingleEvent(g,moved,app.getFrame());
+
+		// Animated until it stops
+		int id=100;
+		for(int i=0;i<30;i++){
+			VertexBuffer vb=skinned.getMesh().getBuffer(Type.Position);
+			vb.resetObject();
+			vb.setId(++id);
+			app.frame(0.016f);
+		}
+		app.frames(10);
+		assertFalse(recorder.get(skinned,(byte)(GeometryState.GEOMETRY_MESH_UPDATED|GeometryState.GEOMETRY_ANIMATED)).isEmpty());
+
+		// Same calls, with the same combined states, as the listener registered on the detector
+		List<String> expected=new ArrayList<String>();
+		for(Event e:recorder.events)expected.add(e.toString());
+		List<String> actual=new ArrayList<String>();
+		for(Event e:adapted.events)actual.add(e.toString());
+		assertEquals(expected,actual);
+	}
+
+	private void grouped(boolean eventDriven){
+		setUp(eventDriven);
+		BatchNode batchNode=new BatchNode("Batch");
+		InstancedNode instancedNode=new InstancedNode("Instanced");
+		Material mat=new Material(app.getAssetManager(),"Common/MatDefs/Misc/Unshaded.j3md");
+		mat.setBoolean("UseInstancing",true);
+		Geometry batched[]=new Geometry[3];
+		Geometry instances[]=new Geometry[3];
+		Box box=new Box(1,1,1);
+		for(int i=0;i<3;i++){
+			batched[i]=new Geometry("B"+i,new Box(1,1,1));
+			batched[i].setMaterial(mat);
+			batchNode.attachChild(batched[i]);
+			instances[i]=new Geometry("I"+i,box);
+			instances[i].setMaterial(mat);
+			instancedNode.attachChild(instances[i]);
+		}
+		batchNode.batch();
+		instancedNode.instance();
+		root.attachChild(batchNode);
+		root.attachChild(instancedNode);
+		app.frames(2);
+
+		// Only the batch and the InstancedGeometry are tracked by default
+		assertEquals(recorder.events.toString(),2,recorder.events.size());
+		for(Event e:recorder.events)assertTrue(e.geom.getName(),e.geom.getParent()==batchNode||e.geom.getParent()==instancedNode);
+		List<Geometry> grouped=new ArrayList<Geometry>();
+		for(Geometry g:batched){
+			assertTrue(g.isGrouped());
+			grouped.add(g);
+		}
+		for(Geometry g:instances){
+			assertTrue(g.isGrouped());
+			grouped.add(g);
+		}
+
+		// Reported once when tracked
+		recorder.clear();
+		detector.setTrackGroupedGeometries(true);
+		app.frames(3);
+		for(Geometry g:grouped)assertSingleEvent(g,GeometryState.NEW_GEOMETRY,recorder.events.get(0).frame);
+		assertEquals(recorder.events.toString(),grouped.size(),recorder.events.size());
+
+		// Reported as removed when no longer tracked, the batches stay
+		recorder.clear();
+		detector.setTrackGroupedGeometries(false);
+		app.frames(3);
+		for(Geometry g:grouped)assertSingleEvent(g,GeometryState.GEOMETRY_REMOVED,recorder.events.get(0).frame);
+		assertEquals(recorder.events.toString(),grouped.size(),recorder.events.size());
+		assertNoEvents(2);
+	}
+
+	@Test
+	public void testGroupedFullTraversal() {
+		grouped(false);
+	}
+
+	@Test
+	public void testGroupedEventDriven() {
+		grouped(true);
+	}
+
+	@Test
+	public void testTransformEpsilon() {
+		setUp(false);
+		detector.setTransformEpsilon(0.01f);
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		root.attachChild(g);
+		app.frames(2);
+
+		// Below the epsilon
+		g.move(0.004f,0,0);
+		assertNoEvents(1);
+		g.move(0.004f,0,0);
+		assertNoEvents(1);
+
+		// The movements add up to more than the epsilon since the last reported transform
+		recorder.clear();
+		g.move(0.004f,0,0);
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_TRANFORM_UPDATED,app.getFrame());
+		assertNoEvents(2);
+	}
+
+	@Test
+	public void testTransformTrackingGeometry() {
+		setUp(false);
+		TransformTrackingGeometry g=new TransformTrackingGeometry("G",new Box(1,1,1));
+		root.attachChild(g);
+		app.frames(2);
+
+		// The world transform is not refreshed when nothing moves
+		long revision=g.getTransformRevision();
+		assertNoEvents(3);
+		assertEquals(revision,g.getTransformRevision());
+
+		recorder.clear();
+		g.setLocalTranslation(1,2,3);
+		app.frame(0.016f);
+		assertSingleEvent(g,GeometryState.GEOMETRY_TRANFORM_UPDATED,app.getFrame());
+		assertTrue(g.getTransformRevision()>revision);
+
+		// Refreshed to the same transform: the values are compared
+		g.setLocalTranslation(1,2,3);
+		assertNoEvents(1);
+	}
+
+	private void animated(boolean eventDriven){
+		setUp(eventDriven);
+		detector.setAnimatedRefreshRate(10);
+		Geometry skinned=new Geometry("Skinned",new Box(1,1,1));
+		Mesh m=skinned.getMesh();
+		m.setBuffer(Type.BindPosePosition,3,BufferUtils.clone(m.getFloatBuffer(Type.Position)));
+		Geometry plain=new Geometry("Plain",new Box(1,1,1));
+		root.attachChild(skinned);
+		root.attachChild(plain);
+		app.frames(2);
+
+		// Position and normals updated every frame, for 0.48 seconds
+		recorder.clear();
+		int id=100;
+		int last=0;
+		for(int i=0;i<30;i++){
+			for(Geometry g:new Geometry[]{skinned,plain}){
+				for(Type t:new Type[]{Type.Position,Type.Normal}){
+					VertexBuffer vb=g.getMesh().getBuffer(t);
+					vb.resetObject();
+					vb.setId(++id);
+				}
+			}
+			app.frame(0.016f);
+			last=app.getFrame();
+		}
+		app.frame(0.016f);
+		assertEquals(30,recorder.get(plain,GeometryState.GEOMETRY_MESH_UPDATED).size());
+		assertEquals(0,recorder.get(plain,GeometryState.GEOMETRY_ANIMATED).size());
+		List<Event> updates=recorder.get(skinned,GeometryState.GEOMETRY_MESH_UPDATED);
+		assertTrue("Updates "+updates,updates.size()>=4&&updates.size()<=6);
+		assertEquals(updates.size(),recorder.get(skinned,(byte)(GeometryState.GEOMETRY_MESH_UPDATED|GeometryState.GEOMETRY_ANIMATED)).size());
+
+		// The last update is reported when the animation stops
+		app.frames(10);
+		updates=recorder.get(skinned,GeometryState.GEOMETRY_MESH_UPDATED);
+		assertTrue("Updates "+updates,updates.get(updates.size()-1).frame>last);
+		assertNoEvents(10);
+	}
+
+	@Test
+	public void testAnimatedFullTraversal() {
+		animated(false);
+	}
+
+	@Test
+	public void testAnimatedEventDriven() {
+		animated(true);
+	}
+
+	@Test
+	public void testMeshUpdateRanges() {
+		setUp(false);
+		detector.setBufferTrackingMode(TrackingMode.ALL);
+		Geometry g=new Geometry("G",new Sphere(32,32,1));
+		root.attachChild(g);
+		final List<int[]> ranges=new ArrayList<int[]>();
+		final boolean types[]=new boolean[3];
+		detector.addListener(new MeshUpdateListener(){
+			@Override
+			public boolean onUpdate(float tpf, Geometry g, byte state) {
+				return true;
+			}
+
+			@Override
+			public boolean onUpdate(float tpf, Geometry g, byte state, MeshUpdate update) {
+				if(!GeometryState.isSet(state,GeometryState.GEOMETRY_MESH_UPDATED))return true;
+				types[0]=update.isUpdated(Type.Position);
+				types[1]=update.isUpdated(Type.Normal);
+				types[2]=update.isRemoved(Type.Position);
+				for(int i=0;i<update.getNumRanges(Type.Position);i++){
+					ranges.add(new int[]{update.getRangeStart(Type.Position,i),update.getRangeEnd(Type.Position,i)});
+				}
+				return true;
+			}
+		});
+		app.frames(3);
+		assertTrue(ranges.isEmpty());
+
+		// Two vertices in different chunks
+		VertexBufferUpdateTracker tracker=VertexBufferUpdateTracker.getInstance(app);
+		int chunk=tracker.getCPUChunkSize();
+		VertexBuffer vb=g.getMesh().getBuffer(Type.Position);
+		assertTrue(vb.getNumElements()>chunk*4);
+		FloatBuffer data=(FloatBuffer)vb.getData();
+		data.put(chunk*3+1,5f);
+		data.put(chunk*3*3,5f);
+		app.frames(2);
+		assertTrue(types[0]);
+		assertFalse(types[1]);
+		assertFalse(types[2]);
+		assertEquals(2,ranges.size());
+		assertEquals(chunk,ranges.get(0)[0]);
+		assertEquals(chunk*2,ranges.get(0)[1]);
+		assertEquals(chunk*3,ranges.get(1)[0]);
+		assertEquals(chunk*4,ranges.get(1)[1]);
+
+		// Same ranges from the tracker, merged into the last pair when out is too short
+		int out[]=new int[4];
+		assertEquals(2,tracker.getUpdatedRanges(vb,out));
+		assertEquals(chunk,out[0]);
+		assertEquals(chunk*4,out[3]);
+		out=new int[2];
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(chunk,out[0]);
+		assertEquals(chunk*4,out[1]);
+		// Too short to hold a range
+		out=new int[]{-1};
+		assertEquals(0,tracker.getUpdatedRanges(vb,out));
+		assertEquals(-1,out[0]);
+		assertEquals(0,tracker.getUpdatedRanges(vb,new int[0]));
+
+		// Two updates while the detector is disabled and the tracker keeps running: the first ranges are lost, the whole buffer is reported
+		tracker.setEnabled(this,true);
+		detector.setEnabled(false);
+		app.frames(1);
+		ranges.clear();
+		long count=tracker.getUpdateCount(vb);
+		data.put(1,6f);
+		app.frames(1);
+		data.put(chunk*3*3,6f);
+		app.frames(1);
+		assertEquals(count+2,tracker.getUpdateCount(vb));
+		out=new int[2];
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(chunk*3,out[0]);
+		assertTrue(ranges.isEmpty());
+		detector.setEnabled(true);
+		app.frames(1);
+		assertEquals(1,ranges.size());
+		assertEquals(0,ranges.get(0)[0]);
+		assertEquals(vb.getNumElements(),ranges.get(0)[1]);
+	}
+}
@@ -0,0 +1,156 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.shape.Box;
+import com.jme3.util.BufferUtils;
+
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.TransformTrackingGeometry;
+import jme3.ext.tests.HeadlessHarness.EventRecorder;
+import jme3.ext.tests.HeadlessHarness.EventRecorder.Event;
+
+/**
+ * The parallel comparison must report the same events, in the same order, of the serial traversal.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestGeometryUpdateDetectorParallel{
+	private static final int GROUPS=4;
+	private static final int SUBGROUPS=4;
+	private static final int GEOMETRIES_PER_SUBGROUP=40;
+	private static final int FRAMES=60;
+
+	/**
+	 * Nested scene with its own application and detector, modified by index so that two scenes receive the same edits.
+	 */
+	private static class Scene{
+		final HeadlessHarness app=new HeadlessHarness();
+		final Node root=new Node("Root");
+		final List<Node> nodes=new ArrayList<Node>();
+		final List<Geometry> geoms=new ArrayList<Geometry>();
+		final GeometryUpdateDetector detector=new GeometryUpdateDetector(root);
+		final EventRecorder recorder=new EventRecorder(app);
+
+		Scene(boolean parallel){
+			for(int i=0;i<GROUPS;i++){
+				Node group=new Node("Group"+i);
+				root.attachChild(group);
+				nodes.add(group);
+				for(int j=0;j<SUBGROUPS;j++){
+					Node sub=new Node("Group"+i+"."+j);
+					group.attachChild(sub);
+					nodes.add(sub);
+					for(int k=0;k<GEOMETRIES_PER_SUBGROUP;k++){
+						String name="G"+i+"."+j+"."+k;
+						Box box=new Box(1,1,1);
+						// Half of them track their transform with the revision
+						Geometry g=k%2==0?new TransformTrackingGeometry(name,box):new Geometry(name,box);
+						g.setLocalTranslation(k,j,i);
+						sub.attachChild(g);
+						geoms.add(g);
+					}
+				}
+			}
+			app.getRootNode().attachChild(root);
+			detector.setParallel(parallel);
+			detector.setParallelThreshold(GEOMETRIES_PER_SUBGROUP*SUBGROUPS,16);
+			detector.addListener(recorder);
+			app.getStateManager().attach(detector);
+		}
+
+		void moveNode(int i,float d){
+			nodes.get(i).move(d,0,0);
+		}
+
+		void moveGeometry(int i,float d){
+			geoms.get(i).move(0,d,0);
+		}
+
+		void replacePositions(int i){
+			Geometry g=geoms.get(i);
+			g.getMesh().setBuffer(Type.Position,3,BufferUtils.clone(g.getMesh().getFloatBuffer(Type.Position)));
+		}
+
+		void toggleAttached(int i){
+			Geometry g=geoms.get(i);
+			if(g.getParent()!=null)g.removeFromParent();
+			else nodes.get(nodes.size()-1-i%nodes.size()).attachChild(g);
+		}
+
+		List<String> events(){
+			List<String> out=new ArrayList<String>();
+			for(Event e:recorder.events)out.add(e.toString());
+			recorder.clear();
+			return out;
+		}
+	}
+
+	@Test
+	public void testSameEventsAsSerial() {
+		Scene serial=new Scene(false);
+		Scene parallel=new Scene(true);
+		assertTrue(parallel.geoms.size()>parallel.detector.getParallelThreshold());
+
+		Random rnd=new Random(7);
+		for(int f=0;f<FRAMES;f++){
+			// Nested nodes are moved without updating the geometric state, the world transforms are refreshed lazily by the detector
+			int node=rnd.nextInt(serial.nodes.size());
+			float d=rnd.nextFloat();
+			serial.moveNode(node,d);
+			parallel.moveNode(node,d);
+			for(int i=0;i<8;i++){
+				int g=rnd.nextInt(serial.geoms.size());
+				d=rnd.nextFloat();
+				serial.moveGeometry(g,d);
+				parallel.moveGeometry(g,d);
+			}
+			if(f%3==0){
+				int g=rnd.nextInt(serial.geoms.size());
+				serial.replacePositions(g);
+				parallel.replacePositions(g);
+			}
+			if(f%5==0){
+				int g=rnd.nextInt(serial.geoms.size());
+				serial.toggleAttached(g);
+				parallel.toggleAttached(g);
+			}
+
+			serial.app.frame(0.016f);
+			parallel.app.frame(0.016f);
+			List<String> expected=serial.events();
+			assertFalse(expected.isEmpty());
+			assertEquals("Frame "+f,expected,parallel.events());
+		}
+	}
+
+	@Test
+	public void testEventDrivenWithoutDirtyTrackingRoot() {
+		// The root is not a DirtyTrackingNode so the full traversal is used, the parallel comparison must still match the serial one
+		Scene serial=new Scene(false);
+		Scene parallel=new Scene(true);
+		serial.detector.setEventDriven(true);
+		parallel.detector.setEventDriven(true);
+		for(int f=0;f<10;f++){
+			serial.moveNode(f%serial.nodes.size(),1);
+			parallel.moveNode(f%parallel.nodes.size(),1);
+			serial.replacePositions(f);
+			parallel.replacePositions(f);
+			serial.app.frame(0.016f);
+			parallel.app.frame(0.016f);
+			assertEquals("Frame "+f,serial.events(),parallel.events());
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package jme3.ext.tests;
+
+
+import jme3.ext.impl.GpuTanBnNDebugAppState;
+
+/**
+ * @author Riccardo Balbo
+ */
+public class TestGpuTanBnNDebugAppState extends TestTanBnNDebugAppState{
+
+	public static void main(String[] args) {
+		TestGpuTanBnNDebugAppState app=new TestGpuTanBnNDebugAppState();
+		app.start();
+	}
+
+	@Override
+	public void applyAppState() {
+		GpuTanBnNDebugAppState appstate=new GpuTanBnNDebugAppState();
+		appstate.setDebugLinesLength(0.2f);
+		stateManager.attach(appstate);
+	}
+}
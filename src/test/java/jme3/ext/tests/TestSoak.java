@@ -0,0 +1,132 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.shape.Box;
+
+import jme3.ext.DebugViewPortAppState;
+import jme3.ext.DirtyTrackingNode;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.TrackingMetrics;
+import jme3.ext.VertexBufferUpdateTracker;
+import jme3.ext.impl.WireframeDebugAppState;
+
+/**
+ * Large scene with geometries continuously added, removed, moved and updated: the used memory must stay flat.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestSoak{
+	private static final int GEOMETRIES=10000;
+	private static final int WARMUP_FRAMES=300;
+	private static final int FRAMES=1500;
+	// Allowed growth of the used heap between the end of the warmup and the end of the test
+	private static final long MAX_GROWTH=16*1024*1024;
+
+	private final Random RANDOM=new Random(42);
+	private final List<Geometry> geoms=new ArrayList<Geometry>();
+	private final List<Node> groups=new ArrayList<Node>();
+	private int id=0;
+
+	private static long usedMemory() throws InterruptedException{
+		Runtime rt=Runtime.getRuntime();
+		for(int i=0;i<3;i++){
+			System.gc();
+			Thread.sleep(50);
+		}
+		return rt.totalMemory()-rt.freeMemory();
+	}
+
+	private void add(){
+		Geometry g=new Geometry("G"+(id++),new Box(1,1,1));
+		g.setLocalTranslation(RANDOM.nextFloat()*100,RANDOM.nextFloat()*100,-RANDOM.nextFloat()*100);
+		groups.get(RANDOM.nextInt(groups.size())).attachChild(g);
+		geoms.add(g);
+	}
+
+	private void churn(){
+		for(int i=0;i<GEOMETRIES/100;i++){
+			// Replace a geometry with a new one, with a new mesh
+			Geometry g=geoms.set(RANDOM.nextInt(geoms.size()),geoms.get(geoms.size()-1));
+			geoms.remove(geoms.size()-1);
+			g.removeFromParent();
+			add();
+		}
+		for(int i=0;i<GEOMETRIES/20;i++){
+			geoms.get(RANDOM.nextInt(geoms.size())).move(RANDOM.nextFloat()-0.5f,0,0);
+		}
+		for(int i=0;i<GEOMETRIES/100;i++){
+			VertexBuffer vb=geoms.get(RANDOM.nextInt(geoms.size())).getMesh().getBuffer(Type.Position);
+			vb.resetObject();
+			vb.setId(++id);
+		}
+	}
+
+	private void soak(boolean eventDriven) throws InterruptedException{
+		HeadlessHarness app=new HeadlessHarness();
+		Node root=eventDriven?new DirtyTrackingNode():new Node();
+		app.getRootNode().attachChild(root);
+		for(int i=0;i<GEOMETRIES/100;i++){
+			Node group=eventDriven?new DirtyTrackingNode():new Node();
+			root.attachChild(group);
+			groups.add(group);
+		}
+		for(int i=0;i<GEOMETRIES;i++)add();
+
+		GeometryUpdateDetector detector=new GeometryUpdateDetector(root);
+		detector.setEventDriven(eventDriven);
+		final GeometryUpdateDetector.Metrics metrics=new GeometryUpdateDetector.Metrics();
+		detector.addMetricsListener(new TrackingMetrics(){
+			@Override
+			public void onDetectorMetrics(GeometryUpdateDetector d, GeometryUpdateDetector.Metrics m) {
+				metrics.set(m);
+			}
+
+			@Override
+			public void onTrackerMetrics(VertexBufferUpdateTracker t, VertexBufferUpdateTracker.Metrics m) {}
+		});
+		app.getStateManager().attach(detector);
+		// Without a root the appstate uses the detector above, through GeometryUpdateDetector.getInstance
+		app.getStateManager().attach(new WireframeDebugAppState());
+
+		for(int i=0;i<WARMUP_FRAMES;i++){
+			churn();
+			app.frame(0.016f);
+		}
+		assertEquals(GEOMETRIES,metrics.getSnapshots());
+		assertEquals(GEOMETRIES,DebugViewPortAppState.getInstance(app).getRoot().getQuantity());
+		long before=usedMemory();
+		for(int i=0;i<FRAMES;i++){
+			churn();
+			app.frame(0.016f);
+		}
+		// Let the tracker expunge the collected buffers
+		usedMemory();
+		app.frames(2);
+		long after=usedMemory();
+		assertEquals(GEOMETRIES,metrics.getSnapshots());
+		assertTrue("Used memory grew from "+before+" to "+after,after-before<MAX_GROWTH);
+	}
+
+	@Test
+	public void testSoakFullTraversal() throws InterruptedException {
+		soak(false);
+	}
+
+	@Test
+	public void testSoakEventDriven() throws InterruptedException {
+		soak(true);
+	}
+}
@@ -0,0 +1,163 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.GeometryUpdateDetector.GeometryState;
+import jme3.ext.SpatialChangeIndex;
+import jme3.ext.SpatialChangeIndex.Cell;
+import jme3.ext.SpatialChangeIndex.Subscription;
+import jme3.ext.tests.HeadlessHarness.EventRecorder;
+
+/**
+ * Changed cells and region subscriptions of SpatialChangeIndex, fed by a GeometryUpdateDetector.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestSpatialChangeIndex{
+	private static final int SIDE=10;
+	private static final float CELL=10f;
+
+	private HeadlessHarness app;
+	private Geometry geoms[][];
+	private SpatialChangeIndex index;
+
+	/**
+	 * One geometry in the middle of each cell of a SIDE*SIDE grid on the xz plane
+	 */
+	private void setUp(){
+		app=new HeadlessHarness();
+		Node root=new Node();
+		app.getRootNode().attachChild(root);
+		geoms=new Geometry[SIDE][SIDE];
+		for(int x=0;x<SIDE;x++){
+			for(int z=0;z<SIDE;z++){
+				geoms[x][z]=new Geometry("G"+x+"_"+z,new Box(1,1,1));
+				geoms[x][z].setLocalTranslation(center(x),0,center(z));
+				root.attachChild(geoms[x][z]);
+			}
+		}
+		app.getRootNode().updateGeometricState();
+		GeometryUpdateDetector detector=new GeometryUpdateDetector(root);
+		index=new SpatialChangeIndex(CELL);
+		detector.setSpatialIndex(index);
+		app.getStateManager().attach(detector);
+		app.frame(0.016f);
+	}
+
+	private static float center(int cell){
+		return cell*CELL+CELL/2;
+	}
+
+	private BoundingBox cellBox(int x,int z){
+		return new BoundingBox(new Vector3f(center(x),0,center(z)),CELL/4,CELL/4,CELL/4);
+	}
+
+	@Test
+	public void testChangedCells() {
+		setUp();
+		assertEquals(SIDE*SIDE,index.size());
+		assertEquals(SIDE*SIDE,index.getChangedCells().size());
+
+		app.frame(0.016f);
+		assertEquals(0,index.getChangedCells().size());
+
+		// Moved inside its cell
+		geoms[2][3].move(1,0,0);
+		app.frame(0.016f);
+		assertEquals(1,index.getChangedCells().size());
+		assertTrue(index.isChanged(cellBox(2,3)));
+		assertFalse(index.isChanged(cellBox(7,7)));
+
+		// Moved to another cell: both are changed
+		geoms[2][3].setLocalTranslation(center(7),0,center(7));
+		app.frame(0.016f);
+		assertEquals(2,index.getChangedCells().size());
+		assertTrue(index.isChanged(cellBox(2,3)));
+		assertTrue(index.isChanged(cellBox(7,7)));
+		Cell cell=index.getCell(new Vector3f(center(7),0,center(7)));
+		assertNotNull(cell);
+		assertEquals(2,cell.getGeometries().size());
+
+		// Emptied cells are dropped by the next update
+		app.frame(0.016f);
+		assertEquals(SIDE*SIDE-1,index.getCellCount());
+
+		geoms[7][7].removeFromParent();
+		app.frame(0.016f);
+		assertEquals(1,index.getChangedCells().size());
+		assertEquals(SIDE*SIDE-1,index.size());
+		assertSame(geoms[2][3],index.getCell(new Vector3f(center(7),0,center(7))).getGeometries().get(0));
+	}
+
+	@Test
+	public void testSubscription() {
+		setUp();
+		EventRecorder recorder=new EventRecorder(app);
+		Subscription region=index.subscribe(recorder);
+		assertTrue(recorder.events.isEmpty());
+
+		// Cells 0..1 on x and z
+		region.setRegion(new BoundingBox(new Vector3f(CELL,0,CELL),CELL-1,1,CELL-1));
+		assertEquals(4,recorder.events.size());
+		assertEquals(1,recorder.get(geoms[1][1],GeometryState.NEW_GEOMETRY).size());
+
+		// Changes outside of the region are not reported
+		recorder.clear();
+		geoms[5][5].move(1,0,0);
+		app.frame(0.016f);
+		assertTrue(recorder.events.toString(),recorder.events.isEmpty());
+
+		// Inside
+		geoms[0][0].move(1,0,0);
+		app.frame(0.016f);
+		assertEquals(1,recorder.get(geoms[0][0],GeometryState.GEOMETRY_TRANFORM_UPDATED).size());
+		assertEquals(1,recorder.events.size());
+
+		// Leaving and entering
+		recorder.clear();
+		geoms[0][0].setLocalTranslation(center(5),0,center(5));
+		geoms[5][5].setLocalTranslation(center(1),0,center(0));
+		app.frame(0.016f);
+		assertEquals(1,recorder.get(geoms[0][0],GeometryState.GEOMETRY_REMOVED).size());
+		assertEquals(1,recorder.get(geoms[5][5],GeometryState.NEW_GEOMETRY).size());
+		assertEquals(2,recorder.events.size());
+
+		// Moving the region: cells 1..2 on x, 0..1 on z
+		recorder.clear();
+		region.setRegion(new BoundingBox(new Vector3f(2*CELL,0,CELL),CELL-1,1,CELL-1));
+		assertEquals(1,recorder.get(geoms[0][1],GeometryState.GEOMETRY_REMOVED).size());
+		assertEquals(1,recorder.get(geoms[2][0],GeometryState.NEW_GEOMETRY).size());
+		assertEquals(1,recorder.get(geoms[2][1],GeometryState.NEW_GEOMETRY).size());
+		assertEquals(3,recorder.events.size());
+
+		// Transform and mesh changed in the same update: one event with both the flags
+		recorder.clear();
+		geoms[2][1].move(1,0,0);
+		geoms[2][1].setMesh(new Box(1,1,1));
+		app.frame(0.016f);
+		assertEquals(recorder.events.toString(),1,recorder.events.size());
+		byte both=GeometryState.GEOMETRY_TRANFORM_UPDATED|GeometryState.GEOMETRY_MESH_UPDATED;
+		assertEquals(1,recorder.get(geoms[2][1],both).size());
+
+		recorder.clear();
+		index.unsubscribe(region);
+		assertEquals(0,index.getSubscriptionCount());
+		geoms[2][0].move(1,0,0);
+		app.frame(0.016f);
+		assertTrue(recorder.events.isEmpty());
+	}
+}
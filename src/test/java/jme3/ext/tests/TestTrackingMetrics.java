@@ -0,0 +1,181 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.shape.Box;
+
+import jme3.ext.DebugViewPortAppState;
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.TrackingMetrics;
+import jme3.ext.VertexBufferUpdateTracker;
+import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
+import jme3.ext.impl.JmxTrackingMetrics;
+import jme3.ext.impl.TrackingStatsAppState;
+
+/**
+ * Metrics reported by GeometryUpdateDetector and VertexBufferUpdateTracker, through a listener, JMX and the stats overlay.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestTrackingMetrics{
+	private static final int GEOMETRIES=10;
+	// Position, Normal, TexCoord and Index
+	private static final int BUFFERS_PER_BOX=4;
+
+	private static class LastMetrics implements TrackingMetrics{
+		public final GeometryUpdateDetector.Metrics detector=new GeometryUpdateDetector.Metrics();
+		public final VertexBufferUpdateTracker.Metrics tracker=new VertexBufferUpdateTracker.Metrics();
+		public int detectorReports;
+		public int trackerReports;
+
+		@Override
+		public void onDetectorMetrics(GeometryUpdateDetector d, GeometryUpdateDetector.Metrics metrics) {
+			detector.set(metrics);
+			detectorReports++;
+		}
+
+		@Override
+		public void onTrackerMetrics(VertexBufferUpdateTracker t, VertexBufferUpdateTracker.Metrics metrics) {
+			tracker.set(metrics);
+			trackerReports++;
+		}
+	}
+
+	private HeadlessHarness app;
+	private Node root;
+	private Geometry geoms[];
+	private GeometryUpdateDetector detector;
+
+	private void setUp(int bufferTrackingMode){
+		app=new HeadlessHarness();
+		root=new Node();
+		app.getRootNode().attachChild(root);
+		geoms=new Geometry[GEOMETRIES];
+		for(int i=0;i<GEOMETRIES;i++){
+			geoms[i]=new Geometry("G"+i,new Box(1,1,1));
+			root.attachChild(geoms[i]);
+		}
+		detector=new GeometryUpdateDetector(root);
+		detector.setBufferTrackingMode(bufferTrackingMode);
+		detector.addListener(new HeadlessHarness.EventRecorder(app));
+		app.getStateManager().attach(detector);
+	}
+
+	@Test
+	public void testDetectorMetrics() {
+		setUp(TrackingMode.ALL&~TrackingMode.CPU);
+		LastMetrics metrics=new LastMetrics();
+		detector.addMetricsListener(metrics);
+
+		app.frame(0.016f);
+		assertEquals(1,metrics.detectorReports);
+		assertEquals(GEOMETRIES,metrics.detector.getNewGeometries());
+		assertEquals(GEOMETRIES,metrics.detector.getGeometriesVisited());
+		assertEquals(GEOMETRIES,metrics.detector.getSnapshots());
+		assertTrue(metrics.detector.getUpdateNanos()>0);
+		assertTrue(metrics.detector.getDispatchNanos()<=metrics.detector.getUpdateNanos());
+
+		geoms[0].move(1,0,0);
+		geoms[1].removeFromParent();
+		app.frame(0.016f);
+		assertEquals(0,metrics.detector.getNewGeometries());
+		assertEquals(1,metrics.detector.getTransformUpdates());
+		assertEquals(1,metrics.detector.getRemovedGeometries());
+		assertEquals(0,metrics.detector.getMeshUpdates());
+		assertEquals(GEOMETRIES-1,metrics.detector.getSnapshots());
+
+		detector.removeMetricsListener(metrics);
+		app.frames(2);
+		assertEquals(2,metrics.detectorReports);
+	}
+
+	@Test
+	public void testTrackerMetrics() {
+		setUp(TrackingMode.ALL);
+		LastMetrics metrics=new LastMetrics();
+		VertexBufferUpdateTracker.getInstance(app).addMetricsListener(metrics);
+
+		app.frames(2);
+		assertEquals(GEOMETRIES*BUFFERS_PER_BOX,metrics.tracker.getTrackedBuffers());
+		assertEquals(GEOMETRIES*BUFFERS_PER_BOX,metrics.tracker.getTrackedBuffers(TrackingMode.CPU));
+		assertEquals(GEOMETRIES*BUFFERS_PER_BOX,metrics.tracker.getTrackedBuffers(TrackingMode.ID));
+		assertTrue(metrics.tracker.getCPUSnapshotBytes()>0);
+		assertEquals(0,metrics.tracker.getUpdates(TrackingMode.CPU));
+
+		// One CPU update and one ID update
+		VertexBuffer pos=geoms[0].getMesh().getBuffer(Type.Position);
+		((FloatBuffer)pos.getData()).put(0,5f);
+		geoms[1].getMesh().getBuffer(Type.Normal).setId(100);
+		app.frame(0.016f);
+		assertEquals(1,metrics.tracker.getUpdates(TrackingMode.CPU));
+		assertEquals(1,metrics.tracker.getUpdates(TrackingMode.ID));
+		assertEquals(0,metrics.tracker.getUpdates(TrackingMode.TYPE));
+		assertTrue(metrics.tracker.getPostRenderNanos()>0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCombinedModeIsRejected() {
+		new VertexBufferUpdateTracker.Metrics().getUpdates(TrackingMode.CPU|TrackingMode.GPU);
+	}
+
+	@Test
+	public void testJmx() throws Exception {
+		setUp(TrackingMode.ALL&~TrackingMode.CPU);
+		JmxTrackingMetrics jmx=new JmxTrackingMetrics();
+		jmx.register("TestTrackingMetrics");
+		try{
+			detector.addMetricsListener(jmx);
+			VertexBufferUpdateTracker.getInstance(app).addMetricsListener(jmx);
+			app.frames(2);
+
+			MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+			ObjectName name=jmx.getObjectName();
+			assertTrue(server.isRegistered(name));
+			assertEquals(1,server.getAttribute(name,"Detectors"));
+			assertEquals(GEOMETRIES,server.getAttribute(name,"Snapshots"));
+			assertEquals(GEOMETRIES*BUFFERS_PER_BOX,server.getAttribute(name,"TrackedBuffersGPU"));
+			assertEquals(0,server.getAttribute(name,"TrackedBuffersCPU"));
+		}finally{
+			jmx.unregister();
+		}
+		assertNull(jmx.getObjectName());
+	}
+
+	@Test
+	public void testOverlay() {
+		setUp(TrackingMode.ALL&~TrackingMode.CPU);
+		TrackingStatsAppState stats=new TrackingStatsAppState(detector);
+		stats.setRefreshInterval(0);
+		app.getStateManager().attach(stats);
+		app.frames(3);
+		String text=stats.getText();
+		assertTrue(text,text.contains("snapshots "+GEOMETRIES));
+		assertTrue(text,text.contains("Tracker: "+GEOMETRIES*BUFFERS_PER_BOX+" buffers"));
+
+		// The metrics of a removed detector leave the totals
+		stats.removeDetector(detector);
+		app.frames(1);
+		text=stats.getText();
+		assertTrue(text,text.contains("Detectors: 0"));
+		assertTrue(text,text.contains("snapshots 0"));
+
+		stats.setEnabled(false);
+		app.frames(1);
+		assertNull(DebugViewPortAppState.getInstance(app).getRoot().getChild("TrackingStats"));
+	}
+}
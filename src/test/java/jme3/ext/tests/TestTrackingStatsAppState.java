@@ -0,0 +1,23 @@
+package jme3.ext.tests;
+
+
+import jme3.ext.impl.TrackingStatsAppState;
+import jme3.ext.impl.WireframeDebugAppState;
+
+/**
+ * @author Riccardo Balbo
+ */
+public class TestTrackingStatsAppState extends TestTanBnNDebugAppState{
+
+	public static void main(String[] args) {
+		TestTrackingStatsAppState app=new TestTrackingStatsAppState();
+		app.start();
+	}
+
+	@Override
+	public void applyAppState() {
+		// Something to track
+		stateManager.attach(new WireframeDebugAppState());
+		stateManager.attach(new TrackingStatsAppState()); // Metrics of the root node detector
+	}
+}
@@ -0,0 +1,96 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.shape.Box;
+
+import jme3.ext.GeometryUpdateDetector;
+import jme3.ext.TrackingTrace;
+import jme3.ext.TrackingTrace.Event;
+import jme3.ext.TrackingTrace.Record;
+
+/**
+ * Ring buffer of TrackingTrace. The events of the detector and the tracker are checked only when the JVM runs with -Djme3.ext.trace=true.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestTrackingTrace{
+
+	@Before
+	public void clear(){
+		TrackingTrace.clear();
+	}
+
+	@Test
+	public void testRecord() {
+		Object subject=new Object();
+		TrackingTrace.record(Event.UPDATE_ID,subject,1,2);
+		TrackingTrace.record(Event.UPDATE_GPU,subject);
+		List<Record> events=TrackingTrace.getEvents();
+		assertEquals(2,events.size());
+		assertEquals(Event.UPDATE_ID,events.get(0).event);
+		assertEquals(System.identityHashCode(subject),events.get(0).subject);
+		assertEquals(1,events.get(0).a);
+		assertEquals(2,events.get(0).b);
+		assertEquals(Event.UPDATE_GPU,events.get(1).event);
+		assertTrue(events.get(0).time<=events.get(1).time);
+	}
+
+	@Test
+	public void testRingOverwritesOldest() {
+		Object subject=new Object();
+		int capacity=TrackingTrace.getCapacity();
+		for(int i=0;i<capacity+10;i++)TrackingTrace.record(Event.UPDATE_ID,subject,i,0);
+		List<Record> events=TrackingTrace.getEvents();
+		assertEquals(capacity,events.size());
+		assertEquals(capacity+10,TrackingTrace.getRecorded());
+		assertEquals(10,events.get(0).a);
+		assertEquals(capacity+9,events.get(capacity-1).a);
+	}
+
+	@Test
+	public void testDetectorAndTrackerEvents() {
+		assumeTrue(TrackingTrace.ENABLED);
+		HeadlessHarness app=new HeadlessHarness();
+		Node root=new Node();
+		app.getRootNode().attachChild(root);
+		Geometry g=new Geometry("G",new Box(1,1,1));
+		root.attachChild(g);
+		GeometryUpdateDetector detector=new GeometryUpdateDetector(root);
+		detector.addListener(new HeadlessHarness.EventRecorder(app));
+		app.getStateManager().attach(detector);
+		app.frame(0.016f);
+
+		TrackingTrace.clear();
+		VertexBuffer vb=g.getMesh().getBuffer(Type.Position);
+		vb.setId(7);
+		app.frames(2);
+		List<Record> events=TrackingTrace.getEvents();
+		assertTrue(events.toString(),contains(events,Event.UPDATE_ID,vb));
+		assertTrue(events.toString(),contains(events,Event.BUFFER_UPDATED,g));
+
+		TrackingTrace.clear();
+		g.removeFromParent();
+		app.frame(0.016f);
+		assertTrue(TrackingTrace.getEvents().toString(),contains(TrackingTrace.getEvents(),Event.REMOVED,g));
+	}
+
+	private static boolean contains(List<Record> events,Event event,Object subject){
+		for(Record r:events){
+			if(r.event==event&&r.subject==System.identityHashCode(subject))return true;
+		}
+		return false;
+	}
+}
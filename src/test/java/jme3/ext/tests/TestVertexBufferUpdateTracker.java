@@ -0,0 +1,135 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+
+import org.junit.Test;
+
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.VertexBuffer.Format;
+import com.jme3.scene.VertexBuffer.Type;
+import com.jme3.scene.VertexBuffer.Usage;
+import com.jme3.util.BufferUtils;
+
+import jme3.ext.VertexBufferUpdateTracker;
+import jme3.ext.VertexBufferUpdateTracker.TrackingMode;
+
+/**
+ * Chunk hashing of the CPU tracking of VertexBufferUpdateTracker: which ranges are reported as changed and when.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestVertexBufferUpdateTracker{
+	private static final int ELEMENTS=1000;
+	private static final int CHUNK=64;
+
+	private HeadlessHarness app;
+	private VertexBufferUpdateTracker tracker;
+	private VertexBuffer vb;
+
+	private void setUp(int sampling){
+		app=new HeadlessHarness();
+		tracker=VertexBufferUpdateTracker.getInstance(app);
+		tracker.setCPUChunkSize(CHUNK);
+		tracker.setCPUSampling(sampling);
+		vb=new VertexBuffer(Type.Position);
+		vb.setupData(Usage.Dynamic,3,Format.Float,BufferUtils.createFloatBuffer(ELEMENTS*3));
+		tracker.add(vb,TrackingMode.CPU);
+		// The first frame hashes the data
+		app.frames(2);
+		assertEquals(0,tracker.getVersion(vb));
+	}
+
+	private FloatBuffer data(){
+		return (FloatBuffer)vb.getData();
+	}
+
+	@Test
+	public void testChunkRange() {
+		setUp(0);
+		int out[]=new int[8];
+
+		// One component of one element: only its chunk is reported
+		data().put(130*3+1,1f);
+		app.frame(0.016f);
+		long version=tracker.getVersion(vb);
+		assertTrue(version>0);
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(2*CHUNK,out[0]);
+		assertEquals(3*CHUNK,out[1]);
+
+		// The same value is not an update
+		data().put(130*3+1,1f);
+		app.frames(2);
+		assertEquals(version,tracker.getVersion(vb));
+
+		// Two distant elements and the last, partial, chunk
+		data().put(0,1f);
+		data().put(500*3,1f);
+		data().put((ELEMENTS-1)*3+2,1f);
+		app.frame(0.016f);
+		assertTrue(tracker.isUpdatedSince(vb,version));
+		assertEquals(3,tracker.getUpdatedRanges(vb,out));
+		assertEquals(0,out[0]);
+		assertEquals(CHUNK,out[1]);
+		assertEquals(7*CHUNK,out[2]);
+		assertEquals(8*CHUNK,out[3]);
+		assertEquals(ELEMENTS/CHUNK*CHUNK,out[4]);
+		assertEquals(ELEMENTS,out[5]);
+	}
+
+	@Test
+	public void testLengthChange() {
+		setUp(0);
+		int out[]=new int[8];
+
+		// Shrunk in place
+		data().limit(500*3);
+		app.frame(0.016f);
+		long version=tracker.getVersion(vb);
+		assertTrue(version>0);
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(0,out[0]);
+		assertEquals(500,out[1]);
+
+		// Replaced with a larger buffer
+		vb.updateData(BufferUtils.createFloatBuffer(2000*3));
+		app.frame(0.016f);
+		assertTrue(tracker.isUpdatedSince(vb,version));
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(0,out[0]);
+		assertEquals(2000,out[1]);
+
+		// Chunk ranges are reported again for the new data
+		version=tracker.getVersion(vb);
+		data().put(1999*3,1f);
+		app.frame(0.016f);
+		assertTrue(tracker.isUpdatedSince(vb,version));
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(1999/CHUNK*CHUNK,out[0]);
+		assertEquals(2000,out[1]);
+	}
+
+	@Test
+	public void testSampling() {
+		int chunks=(ELEMENTS+CHUNK-1)/CHUNK;
+		setUp(1);
+		int out[]=new int[8];
+
+		// A change in a chunk that is not checked in the next frame
+		data().put(10*CHUNK*3,1f);
+		int frames=0;
+		while(tracker.getVersion(vb)==0&&frames<=chunks){
+			app.frame(0.016f);
+			frames++;
+		}
+		assertTrue("Not detected in "+frames+" frames",tracker.getVersion(vb)>0);
+		assertTrue(frames>1);
+		assertEquals(1,tracker.getUpdatedRanges(vb,out));
+		assertEquals(10*CHUNK,out[0]);
+		assertEquals(11*CHUNK,out[1]);
+	}
+}
@@ -0,0 +1,96 @@
+package jme3.ext.tests;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import jme3.ext.WeakIdentityTable;
+
+/**
+ * Entries of collected keys are expunged by swapping them with the last one, the packed array and the buckets must stay consistent.
+ *
+ * @author Riccardo Balbo
+ */
+public class TestWeakIdentityTable{
+	private static final int KEYS=100;
+
+	private static class Value extends WeakIdentityTable.Entry<Object>{
+		final int id;
+
+		Value(Object key,WeakIdentityTable<Object,Value> table,int id){
+			super(key,table);
+			this.id=id;
+		}
+	}
+
+	/**
+	 * Check that iteration and lookups return exactly the expected entries
+	 */
+	private static void assertContent(WeakIdentityTable<Object,Value> table,Map<Object,Value> expected){
+		assertEquals(expected.size(),table.size());
+		Map<Value,Boolean> seen=new IdentityHashMap<Value,Boolean>();
+		for(int i=0;i<table.size();i++){
+			Value v=table.get(i);
+			assertTrue(v.isAlive());
+			assertNull("Entry "+v.id+" iterated twice",seen.put(v,true));
+			Object key=v.get();
+			assertSame(v,expected.get(key));
+			assertSame(v,table.get(key));
+		}
+		for(Map.Entry<Object,Value> e:expected.entrySet())assertSame(e.getValue(),table.get(e.getKey()));
+	}
+
+	@Test
+	public void testExpunge() throws InterruptedException {
+		WeakIdentityTable<Object,Value> table=new WeakIdentityTable<Object,Value>();
+		List<Object> keys=new ArrayList<Object>();
+		List<Value> dropped=new ArrayList<Value>();
+		Map<Object,Value> expected=new IdentityHashMap<Object,Value>();
+		for(int i=0;i<KEYS;i++){
+			Object key=new Object();
+			Value v=new Value(key,table,i);
+			table.add(v);
+			keys.add(key);
+			// Every third key is dropped, the entries spread over the packed array so that removals swap with live entries
+			if(i%3==0)dropped.add(v);
+			else expected.put(key,v);
+		}
+		assertEquals(KEYS,table.size());
+
+		for(Value v:dropped)keys.set(v.id,null);
+		for(int i=0;i<100&&table.size()>expected.size();i++){
+			System.gc();
+			Thread.sleep(10);
+			table.expunge();
+		}
+		for(Value v:dropped){
+			assertNull(v.get());
+			assertFalse(v.isAlive());
+		}
+		assertContent(table,expected);
+
+		// Explicit removals and new entries after the swaps
+		Object first=table.get(0).get();
+		table.remove(expected.remove(first));
+		Object key=new Object();
+		Value v=new Value(key,table,KEYS);
+		table.add(v);
+		expected.put(key,v);
+		assertContent(table,expected);
+
+		table.clear();
+		assertEquals(0,table.size());
+		assertNull(table.get(key));
+		assertFalse(v.isAlive());
+	}
+}